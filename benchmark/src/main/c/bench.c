@@ -0,0 +1,95 @@
+#include "jni-c-to-java.h"
+#include "jni-java-to-c.h"
+
+#define BATCH tel_schich_jniaccess_benchmark_Natives_BATCH
+
+#define PLAIN(statement) \
+    for (jint i = 0; i < BATCH; i++) { \
+        statement; \
+    }
+
+#define SCOPED(statement) \
+    { \
+        bench_Scope scope; \
+        if (bench_ScopeBegin(env, &scope) == JNI_OK) { \
+            for (jint i = 0; i < BATCH; i++) { \
+                statement; \
+            } \
+            bench_ScopeEnd(env, &scope); \
+        } \
+    }
+
+#define DISPATCH(mode, plain, scoped) \
+    switch (mode) { \
+        case tel_schich_jniaccess_benchmark_Natives_MODE_NONE: \
+            PLAIN(plain(None)) \
+            break; \
+        case tel_schich_jniaccess_benchmark_Natives_MODE_EAGER_PERSISTENT: \
+            PLAIN(plain(EagerPersistent)) \
+            break; \
+        case tel_schich_jniaccess_benchmark_Natives_MODE_LAZY_PERSISTENT: \
+            PLAIN(plain(LazyPersistent)) \
+            break; \
+        case tel_schich_jniaccess_benchmark_Natives_MODE_EAGER_TEMPORARY: \
+            SCOPED(scoped(EagerTemporary)) \
+            break; \
+        case tel_schich_jniaccess_benchmark_Natives_MODE_LAZY_TEMPORARY: \
+            SCOPED(scoped(LazyTemporary)) \
+            break; \
+    }
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    bench_OnLoad(env);
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return;
+    }
+    bench_OnUnload(env);
+}
+
+#define READ(mode) sum += read_tel_schich_jniaccess_benchmark_##mode##Target_value(env, target)
+#define READ_SCOPED(mode) sum += read_tel_schich_jniaccess_benchmark_##mode##Target_value_scoped(env, &scope, target)
+
+JNIEXPORT jint JNICALL Java_tel_schich_jniaccess_benchmark_Natives_read(JNIEnv *env, jclass clazz, jint mode, jobject target) {
+    jint sum = 0;
+    DISPATCH(mode, READ, READ_SCOPED)
+    return sum;
+}
+
+#define WRITE(mode) write_tel_schich_jniaccess_benchmark_##mode##Target_value(env, target, value)
+#define WRITE_SCOPED(mode) write_tel_schich_jniaccess_benchmark_##mode##Target_value_scoped(env, &scope, target, value)
+
+JNIEXPORT void JNICALL Java_tel_schich_jniaccess_benchmark_Natives_write(JNIEnv *env, jclass clazz, jint mode, jobject target, jint value) {
+    DISPATCH(mode, WRITE, WRITE_SCOPED)
+}
+
+#define CALL(mode) sum += call_tel_schich_jniaccess_benchmark_##mode##Target_add(env, target, value)
+#define CALL_SCOPED(mode) sum += call_tel_schich_jniaccess_benchmark_##mode##Target_add_scoped(env, &scope, target, value)
+
+JNIEXPORT jint JNICALL Java_tel_schich_jniaccess_benchmark_Natives_call(JNIEnv *env, jclass clazz, jint mode, jobject target, jint value) {
+    jint sum = 0;
+    DISPATCH(mode, CALL, CALL_SCOPED)
+    return sum;
+}
+
+#define CREATE(mode) (*env)->DeleteLocalRef(env, create_tel_schich_jniaccess_benchmark_##mode##Target(env))
+#define CREATE_SCOPED(mode) (*env)->DeleteLocalRef(env, create_tel_schich_jniaccess_benchmark_##mode##Target_scoped(env, &scope))
+
+JNIEXPORT void JNICALL Java_tel_schich_jniaccess_benchmark_Natives_create(JNIEnv *env, jclass clazz, jint mode) {
+    DISPATCH(mode, CREATE, CREATE_SCOPED)
+}
+
+#define THROW(mode) throw_tel_schich_jniaccess_benchmark_##mode##Failure(env, i); (*env)->ExceptionClear(env)
+#define THROW_SCOPED(mode) throw_tel_schich_jniaccess_benchmark_##mode##Failure_scoped(env, &scope, i); (*env)->ExceptionClear(env)
+
+JNIEXPORT void JNICALL Java_tel_schich_jniaccess_benchmark_Natives_throwAndClear(JNIEnv *env, jclass clazz, jint mode) {
+    DISPATCH(mode, THROW, THROW_SCOPED)
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tel.schich.jniaccess.CacheMode;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the generated wrappers per cache mode. The native library is built from the generated
+ * sources during the build and loaded from the path given by the jniaccess.benchmark.library system property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessorBenchmark {
+    @Param({"NONE", "EAGER_PERSISTENT", "LAZY_PERSISTENT", "EAGER_TEMPORARY", "LAZY_TEMPORARY"})
+    public CacheMode cacheMode;
+
+    private int mode;
+    private Object target;
+
+    @Setup
+    public void setup() {
+        System.load(new File(System.getProperty("jniaccess.benchmark.library", "target/native/libjniaccessbench.so")).getAbsolutePath());
+        mode = Natives.mode(cacheMode);
+        target = Natives.target(cacheMode);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Natives.BATCH)
+    public int read() {
+        return Natives.read(mode, target);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Natives.BATCH)
+    public void write() {
+        Natives.write(mode, target, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Natives.BATCH)
+    public int call() {
+        return Natives.call(mode, target, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Natives.BATCH)
+    public void create() {
+        Natives.create(mode);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Natives.BATCH)
+    public void throwAndClear() {
+        Natives.throwAndClear(mode);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess.benchmark;
+
+import tel.schich.jniaccess.CacheMode;
+
+/**
+ * Entry points into the benchmark library. Each call performs {@link #BATCH} operations using the wrappers of the
+ * given cache mode, temporary modes within a single scope.
+ */
+public final class Natives {
+    public static final int BATCH = 100;
+
+    public static final int MODE_NONE = 0;
+    public static final int MODE_EAGER_PERSISTENT = 1;
+    public static final int MODE_LAZY_PERSISTENT = 2;
+    public static final int MODE_EAGER_TEMPORARY = 3;
+    public static final int MODE_LAZY_TEMPORARY = 4;
+
+    private Natives() {
+    }
+
+    static int mode(CacheMode cacheMode) {
+        switch (cacheMode) {
+            case NONE:
+                return MODE_NONE;
+            case EAGER_PERSISTENT:
+                return MODE_EAGER_PERSISTENT;
+            case LAZY_PERSISTENT:
+                return MODE_LAZY_PERSISTENT;
+            case EAGER_TEMPORARY:
+                return MODE_EAGER_TEMPORARY;
+            case LAZY_TEMPORARY:
+                return MODE_LAZY_TEMPORARY;
+            default:
+                throw new IllegalArgumentException("Unsupported cache mode: " + cacheMode);
+        }
+    }
+
+    static Object target(CacheMode cacheMode) {
+        switch (cacheMode) {
+            case NONE:
+                return new NoneTarget();
+            case EAGER_PERSISTENT:
+                return new EagerPersistentTarget();
+            case LAZY_PERSISTENT:
+                return new LazyPersistentTarget();
+            case EAGER_TEMPORARY:
+                return new EagerTemporaryTarget();
+            case LAZY_TEMPORARY:
+                return new LazyTemporaryTarget();
+            default:
+                throw new IllegalArgumentException("Unsupported cache mode: " + cacheMode);
+        }
+    }
+
+    static native int read(int mode, Object target);
+
+    static native void write(int mode, Object target, int value);
+
+    static native int call(int mode, Object target, int value);
+
+    static native void create(int mode);
+
+    static native void throwAndClear(int mode);
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tel.schich.jniaccess.CacheMode;
+import tel.schich.jniaccess.JNIAccess;
+import tel.schich.jniaccess.JNIAccessProcessor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time the processor takes for a synthetic class with the given number of annotated members, half of them
+ * fields and half of them methods, spread across all cache modes. The sources are only processed, not compiled. The
+ * baseline runs a processor that does nothing. javac itself spends considerable time on large classes between processing
+ * rounds, which varies by more than the processor takes, so the times only show gross regressions. Run with -prof gc to
+ * compare the allocations, which {@link ProcessorBudget} checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+    private static final CacheMode[] CACHE_MODES = {
+            CacheMode.NONE,
+            CacheMode.EAGER_PERSISTENT,
+            CacheMode.LAZY_PERSISTENT,
+            CacheMode.EAGER_TEMPORARY,
+            CacheMode.LAZY_TEMPORARY,
+    };
+
+    @Param({"1000", "10000"})
+    public int members;
+
+    private JavaCompiler compiler;
+    private JavaFileObject source;
+    private Path outputLocation;
+
+    @Setup
+    public void setup() throws IOException {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        source = new SimpleJavaFileObject(URI.create("string:///synthetic/Synthetic.java"), JavaFileObject.Kind.SOURCE) {
+            private final String content = generateSource(members);
+
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+        outputLocation = Files.createTempDirectory("jni-access-processor-benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        File[] files = outputLocation.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(outputLocation);
+    }
+
+    private static String generateSource(int members) {
+        StringBuilder out = new StringBuilder();
+        out.append("package synthetic;\n\n");
+        out.append("import tel.schich.jniaccess.CacheMode;\n");
+        out.append("import tel.schich.jniaccess.JNIAccess;\n\n");
+        out.append("public class Synthetic {\n");
+        for (int i = 0; i < members; i++) {
+            final String cacheMode = CACHE_MODES[(i / 2) % CACHE_MODES.length].name();
+            out.append("    @JNIAccess(cacheMode = CacheMode.").append(cacheMode).append(")\n");
+            if (i % 2 == 0) {
+                out.append("    public int field").append(i).append(";\n");
+            } else {
+                out.append("    public long method").append(i).append("(int a, String b) {\n");
+                out.append("        return a;\n");
+                out.append("    }\n");
+            }
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private Boolean run(Processor processor) {
+        List<String> options = Arrays.asList(
+                "-proc:only",
+                "-classpath", System.getProperty("java.class.path"),
+                "-Aoutput.location=" + outputLocation.toAbsolutePath()
+        );
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null, options, null, Collections.singletonList(source));
+        task.setProcessors(Collections.singletonList(processor));
+        return task.call();
+    }
+
+    @Benchmark
+    public Boolean baseline() {
+        return run(new NoopProcessor());
+    }
+
+    @Benchmark
+    public Boolean process() {
+        return run(new JNIAccessProcessor());
+    }
+
+    @SupportedAnnotationTypes("tel.schich.jniaccess.JNIAccess")
+    @SupportedOptions("output.location")
+    public static class NoopProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            return !roundEnv.getElementsAnnotatedWith(JNIAccess.class).isEmpty();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Checks the allocations of the processor against a budget for the synthetic class of {@link ProcessorBenchmark} with
+ * 10000 annotated members, to catch regressions such as quadratic lookups without running the full benchmark.
+ * Allocations are measured relative to the no-op baseline, as the minimum of a few runs after a warmup run. Unlike the
+ * time, which is dominated by javac and varies by more than the processor takes, they are stable between runs and
+ * machines. Exits with a non-zero status if the budget is exceeded.
+ */
+public final class ProcessorBudget {
+    private static final int MEMBERS = 10000;
+    private static final int RUNS = 2;
+    /**
+     * The processor may allocate at most this many bytes more than the baseline. When this was set it allocated about
+     * 450 MB, with the per member lookups of the enclosed elements it allocated about 11 GB.
+     */
+    private static final long ALLOCATION_BUDGET = 1024L << 20;
+
+    private ProcessorBudget() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final ProcessorBenchmark benchmark = new ProcessorBenchmark();
+        benchmark.members = MEMBERS;
+        benchmark.setup();
+        final long baseline;
+        final long process;
+        try {
+            baseline = measureAllocations(benchmark::baseline);
+            process = measureAllocations(benchmark::process);
+        } finally {
+            benchmark.tearDown();
+        }
+
+        final long allocated = process - baseline;
+        System.out.printf("%d members: processor allocated %d MB above the baseline (budget %d MB)%n", MEMBERS, allocated >> 20, ALLOCATION_BUDGET >> 20);
+        if (allocated > ALLOCATION_BUDGET) {
+            System.err.println("The processor exceeded its allocation budget!");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the minimal allocated bytes of the runs
+     */
+    private static long measureAllocations(Supplier<Boolean> run) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        run.get();
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            if (!run.get()) {
+                throw new IllegalStateException("Processing failed");
+            }
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - allocatedBefore);
+        }
+        return allocated;
+    }
+}
@@ -28,10 +28,16 @@ import javax.lang.model.type.TypeMirror;
 public class AccessedClass {
     private final TypeElement element;
     private final TypeMirror type;
+    private final String typeName;
+    private final String qualifiedName;
+    private final String symbolName;
 
-    public AccessedClass(TypeElement element, TypeMirror type) {
+    public AccessedClass(TypeElement element, TypeMirror type, ElementIndex index) {
         this.element = element;
         this.type = type;
+        this.typeName = TypeHelper.getClassTypeName(element);
+        this.qualifiedName = index.qualifiedName(element);
+        this.symbolName = qualifiedName.replace('.', '_');
     }
 
     public TypeElement getElement() {
@@ -43,6 +49,17 @@ public class AccessedClass {
     }
 
     public String getTypeName() {
-        return TypeHelper.getClassTypeName(element);
+        return typeName;
+    }
+
+    public String getQualifiedName() {
+        return qualifiedName;
+    }
+
+    /**
+     * A name unique within the module that symbols related to this class are derived from.
+     */
+    public String getSymbolName() {
+        return symbolName;
     }
 }
@@ -31,12 +31,14 @@ public class AccessedField {
     private final TypeMirror type;
     private final boolean isStatic;
     private final boolean isFinal;
+    private final String symbolName;
 
-    public AccessedField(VariableElement element, TypeMirror type) {
+    public AccessedField(VariableElement element, TypeMirror type, ElementIndex index) {
         this.element = element;
         this.type = type;
         this.isStatic = this.element.getModifiers().contains(Modifier.STATIC);
         this.isFinal = this.element.getModifiers().contains(Modifier.FINAL);
+        this.symbolName = index.qualifiedName(element.getEnclosingElement()).replace('.', '_') + "__" + getName() + index.indexInParent(element);
     }
 
     public VariableElement getElement() {
@@ -58,4 +60,11 @@ public class AccessedField {
     public boolean isFinal() {
         return isFinal;
     }
+
+    /**
+     * A name unique within the module that symbols related to this field are derived from.
+     */
+    public String getSymbolName() {
+        return symbolName;
+    }
 }
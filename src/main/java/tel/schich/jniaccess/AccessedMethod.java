@@ -31,12 +31,15 @@ public class AccessedMethod {
     private final List<MethodParam> params;
     private final boolean isConstructor;
     private final boolean isStatic;
+    private final String symbolName;
 
-    public AccessedMethod(ExecutableElement element, List<MethodParam> params) {
+    public AccessedMethod(ExecutableElement element, List<MethodParam> params, ElementIndex index) {
         this.element = element;
         this.params = params;
         this.isConstructor = element.getSimpleName().toString().equals("<init>");
         this.isStatic = element.getModifiers().contains(Modifier.STATIC);
+        final String name = isConstructor ? "ctor" : getName();
+        this.symbolName = index.qualifiedName(element.getEnclosingElement()).replace('.', '_') + "__" + name + index.indexInParent(element);
     }
 
     public ExecutableElement getElement() {
@@ -58,4 +61,11 @@ public class AccessedMethod {
     public boolean isStatic() {
         return isStatic;
     }
+
+    /**
+     * A name unique within the module that symbols related to this method are derived from.
+     */
+    public String getSymbolName() {
+        return symbolName;
+    }
 }
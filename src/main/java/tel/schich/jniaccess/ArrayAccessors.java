@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+/**
+ * Generates the {@link ArrayAccess} accessors on top of a wrapper function returning a primitive array.
+ */
+public abstract class ArrayAccessors {
+    private ArrayAccessors() {
+    }
+
+    static boolean isPrimitiveArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY && ((ArrayType) type).getComponentType().getKind().isPrimitive();
+    }
+
+    private static TypeMirror componentType(TypeMirror type) {
+        return ((ArrayType) type).getComponentType();
+    }
+
+    private static void signatureStart(Types types, StringBuilder out, String returnType, String functionName, boolean instance, List<MethodParam> params) {
+        out.append(returnType).append(' ').append(functionName).append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        GeneratorHelper.generateFunctionSignatureParameters(types, out, params, false);
+    }
+
+    private static void regionSignature(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params, TypeMirror arrayType, boolean write) {
+        signatureStart(types, out, "jsize", functionName, instance, params);
+        out.append(", jsize ").append(GeneratorHelper.deconflictSymbol("start", params));
+        out.append(", jsize ").append(GeneratorHelper.deconflictSymbol("length", params));
+        out.append(", ");
+        if (write) {
+            out.append("const ");
+        }
+        out.append(TypeHelper.getCType(types, componentType(arrayType))).append(" *").append(GeneratorHelper.deconflictSymbol("buffer", params));
+        out.append(")");
+    }
+
+    private static void pinSignature(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params, TypeMirror arrayType) {
+        signatureStart(types, out, TypeHelper.getCType(types, componentType(arrayType)) + "*", functionName, instance, params);
+        out.append(", ").append(TypeHelper.getCType(types, arrayType)).append(" *").append(GeneratorHelper.deconflictSymbol("array", params));
+        out.append(", jsize *").append(GeneratorHelper.deconflictSymbol("length", params));
+        out.append(")");
+    }
+
+    private static void unpinSignature(Types types, StringBuilder out, String functionName, TypeMirror arrayType) {
+        out.append("void ").append(functionName).append("(JNIEnv *env, ")
+                .append(TypeHelper.getCType(types, arrayType)).append(" array, ")
+                .append(TypeHelper.getCType(types, componentType(arrayType))).append(" *elements, jboolean commit)");
+    }
+
+    static void generateDeclarations(Types types, StringBuilder out, ArrayAccess access, String prefix, AccessedClass clazz, String baseName, boolean instance, List<MethodParam> params, TypeMirror arrayType, boolean write) {
+        switch (access) {
+            case REGION:
+                regionSignature(types, out, GeneratorHelper.functionName(prefix + "_region", clazz, baseName), instance, params, arrayType, false);
+                out.append(";\n");
+                if (write) {
+                    regionSignature(types, out, GeneratorHelper.functionName("write_region", clazz, baseName), instance, params, arrayType, true);
+                    out.append(";\n");
+                }
+                break;
+            case CRITICAL:
+                pinSignature(types, out, GeneratorHelper.functionName(prefix + "_pin", clazz, baseName), instance, params, arrayType);
+                out.append(";\n");
+                unpinSignature(types, out, GeneratorHelper.functionName("unpin", clazz, baseName), arrayType);
+                out.append(";\n");
+                break;
+            default:
+        }
+    }
+
+    static void generateImplementations(Types types, StringBuilder out, ArrayAccess access, String prefix, String readName, AccessedClass clazz, String baseName, boolean instance, List<MethodParam> params, TypeMirror arrayType, boolean write) {
+        switch (access) {
+            case REGION:
+                generateRegionImpl(types, out, GeneratorHelper.functionName(prefix + "_region", clazz, baseName), readName, instance, params, arrayType, false);
+                out.append("\n");
+                if (write) {
+                    generateRegionImpl(types, out, GeneratorHelper.functionName("write_region", clazz, baseName), readName, instance, params, arrayType, true);
+                    out.append("\n");
+                }
+                break;
+            case CRITICAL:
+                generatePinImpl(types, out, GeneratorHelper.functionName(prefix + "_pin", clazz, baseName), readName, instance, params, arrayType);
+                out.append("\n");
+                generateUnpinImpl(types, out, GeneratorHelper.functionName("unpin", clazz, baseName), arrayType);
+                out.append("\n");
+                break;
+            default:
+        }
+    }
+
+    private static void generateReadCall(StringBuilder out, String arraySymbol, String cType, String readName, boolean instance, List<MethodParam> params) {
+        out.append("    ").append(cType).append(' ').append(arraySymbol).append(" = ").append(readName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ").append(param.getName());
+        }
+        out.append(");\n");
+    }
+
+    /**
+     * The region accessors copy at most length elements and return the number of elements actually copied, or -1 if
+     * there is no array.
+     */
+    private static void generateRegionImpl(Types types, StringBuilder out, String functionName, String readName, boolean instance, List<MethodParam> params, TypeMirror arrayType, boolean write) {
+        final String start = GeneratorHelper.deconflictSymbol("start", params);
+        final String length = GeneratorHelper.deconflictSymbol("length", params);
+        final String buffer = GeneratorHelper.deconflictSymbol("buffer", params);
+        final String array = GeneratorHelper.deconflictSymbol("array", params);
+        final String copied = GeneratorHelper.deconflictSymbol("copied", params);
+
+        regionSignature(types, out, functionName, instance, params, arrayType, write);
+        out.append(" {\n");
+        generateReadCall(out, array, TypeHelper.getCType(types, arrayType), readName, instance, params);
+        out.append("    if (").append(array).append(" == NULL) {\n");
+        out.append("        return -1;\n");
+        out.append("    }\n");
+        out.append("    jsize ").append(copied).append(" = (*env)->GetArrayLength(env, ").append(array).append(") - ").append(start).append(";\n");
+        out.append("    if (").append(copied).append(" > ").append(length).append(") {\n");
+        out.append("        ").append(copied).append(" = ").append(length).append(";\n");
+        out.append("    }\n");
+        out.append("    if (").append(copied).append(" > 0) {\n");
+        out.append("        (*env)->").append(write ? "Set" : "Get").append(TypeHelper.getJNIHelperType(componentType(arrayType)))
+                .append("ArrayRegion(env, ").append(array).append(", ").append(start).append(", ").append(copied).append(", ").append(buffer).append(");\n");
+        out.append("    } else {\n");
+        out.append("        ").append(copied).append(" = 0;\n");
+        out.append("    }\n");
+        GeneratorHelper.generateDeleteLocalRef(out, array, "    ");
+        out.append("\n");
+        out.append("    return ").append(copied).append(";\n");
+        out.append("}\n");
+    }
+
+    /**
+     * The pin accessors hand out the array reference, which has to be passed to the unpin function together with
+     * the elements. No other JNI function may be called while the array is pinned.
+     */
+    private static void generatePinImpl(Types types, StringBuilder out, String functionName, String readName, boolean instance, List<MethodParam> params, TypeMirror arrayType) {
+        final String array = GeneratorHelper.deconflictSymbol("array", params);
+        final String length = GeneratorHelper.deconflictSymbol("length", params);
+        final String local = GeneratorHelper.deconflictSymbol("local", params);
+        final String cType = TypeHelper.getCType(types, arrayType);
+
+        pinSignature(types, out, functionName, instance, params, arrayType);
+        out.append(" {\n");
+        generateReadCall(out, local, cType, readName, instance, params);
+        out.append("    *").append(array).append(" = ").append(local).append(";\n");
+        out.append("    if (").append(local).append(" == NULL) {\n");
+        out.append("        *").append(length).append(" = 0;\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    *").append(length).append(" = (*env)->GetArrayLength(env, ").append(local).append(");\n");
+        out.append("    return (*env)->GetPrimitiveArrayCritical(env, ").append(local).append(", NULL);\n");
+        out.append("}\n");
+    }
+
+    private static void generateUnpinImpl(Types types, StringBuilder out, String functionName, TypeMirror arrayType) {
+        unpinSignature(types, out, functionName, arrayType);
+        out.append(" {\n");
+        out.append("    if (array == NULL) {\n");
+        out.append("        return;\n");
+        out.append("    }\n");
+        out.append("    if (elements != NULL) {\n");
+        out.append("        (*env)->ReleasePrimitiveArrayCritical(env, array, elements, commit ? 0 : JNI_ABORT);\n");
+        out.append("    }\n");
+        GeneratorHelper.generateDeleteLocalRef(out, "array", "    ");
+        out.append("\n");
+        out.append("}\n");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.util.Types;
+import java.util.List;
+
+import static tel.schich.jniaccess.GeneratorHelper.*;
+
+/**
+ * Generates variants of String producing wrappers that copy the modified UTF-8 representation into a caller
+ * supplied buffer instead of returning a jstring.
+ * <p>
+ * Like snprintf, these return the full length of the string in bytes (excluding the terminator), so the result was
+ * truncated if it is greater than or equal to the buffer size. A NULL string results in -1. The buffer is always
+ * terminated, as long as its size is greater than 0.
+ */
+public abstract class CStringResults {
+    public static final String RESULT_FUNCTION_SUFFIX = "_out";
+
+    private static final int CHUNK_SIZE = 64;
+
+    private CStringResults() {
+    }
+
+    public static boolean isRequired(List<WrappedElement> elements) {
+        for (WrappedElement element : elements) {
+            if (element.hasStringResult()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String generateCopyFunctionName(String moduleNamespace) {
+        return moduleNamespace + "copy_string_utf";
+    }
+
+    /**
+     * Strings that do not fit are cut at a character boundary, which is found by measuring stack sized chunks of the
+     * string using GetStringRegion.
+     */
+    public static void generateCopyFunction(StringBuilder out, String moduleNamespace) {
+        out.append("static jsize ").append(generateCopyFunctionName(moduleNamespace)).append("(JNIEnv *env, jstring string, char *buffer, jsize size) {\n");
+        out.append("    if (string == NULL) {\n");
+        out.append("        if (size > 0) {\n");
+        out.append("            buffer[0] = '\\0';\n");
+        out.append("        }\n");
+        out.append("        return -1;\n");
+        out.append("    }\n");
+        out.append("    jsize length = (*env)->GetStringUTFLength(env, string);\n");
+        out.append("    if (size <= 0) {\n");
+        out.append("        return length;\n");
+        out.append("    }\n");
+        out.append("    jsize chars = (*env)->GetStringLength(env, string);\n");
+        out.append("    if (length < size) {\n");
+        out.append("        (*env)->GetStringUTFRegion(env, string, 0, chars, buffer);\n");
+        out.append("        buffer[length] = '\\0';\n");
+        out.append("        return length;\n");
+        out.append("    }\n");
+        out.append("    jchar chunk[").append(CHUNK_SIZE).append("];\n");
+        out.append("    jsize bytes = 0;\n");
+        out.append("    jsize fitting = 0;\n");
+        out.append("    jboolean full = JNI_FALSE;\n");
+        out.append("    while (!full && fitting < chars) {\n");
+        out.append("        jsize count = chars - fitting;\n");
+        out.append("        if (count > ").append(CHUNK_SIZE).append(") {\n");
+        out.append("            count = ").append(CHUNK_SIZE).append(";\n");
+        out.append("        }\n");
+        out.append("        (*env)->GetStringRegion(env, string, fitting, count, chunk);\n");
+        out.append("        for (jsize i = 0; i < count; i++) {\n");
+        out.append("            jchar c = chunk[i];\n");
+        out.append("            jsize width = (c >= 0x01 && c <= 0x7F) ? 1 : (c <= 0x7FF ? 2 : 3);\n");
+        out.append("            if (bytes + width >= size) {\n");
+        out.append("                full = JNI_TRUE;\n");
+        out.append("                break;\n");
+        out.append("            }\n");
+        out.append("            bytes += width;\n");
+        out.append("            fitting++;\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        out.append("    (*env)->GetStringUTFRegion(env, string, 0, fitting, buffer);\n");
+        out.append("    buffer[bytes] = '\\0';\n");
+        out.append("    return length;\n");
+        out.append("}\n\n");
+    }
+
+    private static void generateSignature(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params, boolean cStrings) {
+        out.append("jsize ").append(functionName).append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        generateFunctionSignatureParameters(types, out, params, cStrings);
+        out.append(", char *").append(deconflictSymbol("buffer", params));
+        out.append(", jsize ").append(deconflictSymbol("size", params));
+        out.append(")");
+    }
+
+    public static void generateDeclaration(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params, boolean cStrings) {
+        generateSignature(types, out, functionName, instance, params, cStrings);
+        out.append(";\n");
+    }
+
+    /**
+     * @param functionName the name of the generated function
+     * @param sourceName the name of the function producing the jstring, taking the same parameters
+     */
+    public static void generateImplementation(Types types, StringBuilder out, String moduleNamespace, String functionName, String sourceName, boolean instance, List<MethodParam> params, boolean cStrings) {
+        final String string = deconflictSymbol("string", params);
+        final String length = deconflictSymbol("length", params);
+        generateSignature(types, out, functionName, instance, params, cStrings);
+        out.append(" {\n");
+        out.append("    jstring ").append(string).append(" = ").append(sourceName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ");
+            if (cStrings && TypeHelper.isString(types, param.getType())) {
+                out.append(cStringName(param));
+            } else {
+                out.append(param.getName());
+            }
+        }
+        out.append(");\n");
+        out.append("    jsize ").append(length).append(" = ").append(generateCopyFunctionName(moduleNamespace)).append("(env, ").append(string)
+                .append(", ").append(deconflictSymbol("buffer", params)).append(", ").append(deconflictSymbol("size", params)).append(");\n");
+        out.append("    if (").append(string).append(" != NULL) {\n");
+        generateDeleteLocalRef(out, string, "        ");
+        out.append("\n");
+        out.append("    }\n");
+        out.append("    return ").append(length).append(";\n");
+        out.append("}\n");
+    }
+}
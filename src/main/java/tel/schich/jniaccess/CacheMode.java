@@ -29,4 +29,9 @@ public enum CacheMode {
     LAZY_PERSISTENT,
     EAGER_TEMPORARY,
     LAZY_TEMPORARY,
+    ;
+
+    public boolean isTemporary() {
+        return this == EAGER_TEMPORARY || this == LAZY_TEMPORARY;
+    }
 }
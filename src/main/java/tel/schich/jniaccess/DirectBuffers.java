@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+import static tel.schich.jniaccess.GeneratorHelper.*;
+
+/**
+ * Generates helpers exchanging direct {@link java.nio.ByteBuffer}s as native address and capacity.
+ */
+public abstract class DirectBuffers {
+    private DirectBuffers() {
+    }
+
+    public static boolean hasByteBufferParameter(Types types, List<MethodParam> params) {
+        for (MethodParam param : params) {
+            if (TypeHelper.isByteBuffer(types, param.getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String addressName(MethodParam param) {
+        return param.getName() + "_address";
+    }
+
+    public static String capacityName(MethodParam param) {
+        return param.getName() + "_capacity";
+    }
+
+    public static void generateOverloadSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
+        out.append(TypeHelper.getCType(types, returnType)).append(' ');
+        out.append(functionName).append(DIRECT_BUFFER_FUNCTION_SUFFIX);
+        out.append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        for (MethodParam param : params) {
+            if (TypeHelper.isByteBuffer(types, param.getType())) {
+                out.append(", void *").append(addressName(param));
+                out.append(", jlong ").append(capacityName(param));
+            } else {
+                out.append(", ").append(TypeHelper.getCType(types, param.getType())).append(' ').append(param.getName());
+            }
+        }
+        out.append(")");
+    }
+
+    /**
+     * Generates a variant of the given function that wraps native memory into direct buffers for all ByteBuffer
+     * parameters.
+     */
+    public static void generateOverload(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
+        generateOverloadSignature(types, out, functionName, returnType, instance, params);
+        out.append(" {\n");
+        for (MethodParam param : params) {
+            if (TypeHelper.isByteBuffer(types, param.getType())) {
+                out.append("    jobject ").append(param.getName()).append(" = (*env)->NewDirectByteBuffer(env, ")
+                        .append(addressName(param)).append(", ").append(capacityName(param)).append(");\n");
+            }
+        }
+        final String resultSymbol = deconflictSymbol("result", params);
+        out.append("    ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append(TypeHelper.getCType(types, returnType)).append(' ').append(resultSymbol).append(" = ");
+        }
+        out.append(functionName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ").append(param.getName());
+        }
+        out.append(");\n");
+        for (MethodParam param : params) {
+            if (TypeHelper.isByteBuffer(types, param.getType())) {
+                generateDeleteLocalRef(out, param.getName(), "    ");
+                out.append('\n');
+            }
+        }
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append("    return ").append(resultSymbol).append(";\n");
+        }
+        out.append("}\n");
+    }
+
+    private static void generateAddressSignature(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params) {
+        out.append("void* ").append(functionName).append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        generateFunctionSignatureParameters(types, out, params, false);
+        out.append(", jlong *").append(deconflictSymbol("capacity", params)).append(")");
+    }
+
+    private static void generateWrapSignature(StringBuilder out, String functionName, boolean instance) {
+        out.append("void ").append(functionName).append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        out.append(", void *address, jlong capacity)");
+    }
+
+    public static void generateAddressDeclaration(Types types, StringBuilder out, String functionName, boolean instance, List<MethodParam> params) {
+        generateAddressSignature(types, out, functionName, instance, params);
+        out.append(";\n");
+    }
+
+    /**
+     * The address accessors return NULL and a capacity of -1 if there is no buffer or the buffer is not direct.
+     * The capacity pointer may be NULL.
+     */
+    public static void generateAddressImplementation(Types types, StringBuilder out, String functionName, String readName, boolean instance, List<MethodParam> params) {
+        final String capacity = deconflictSymbol("capacity", params);
+        final String buffer = deconflictSymbol("buffer", params);
+        final String address = deconflictSymbol("address", params);
+        final String size = deconflictSymbol("size", params);
+
+        generateAddressSignature(types, out, functionName, instance, params);
+        out.append(" {\n");
+        out.append("    jobject ").append(buffer).append(" = ").append(readName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ").append(param.getName());
+        }
+        out.append(");\n");
+        out.append("    void *").append(address).append(" = NULL;\n");
+        out.append("    jlong ").append(size).append(" = -1;\n");
+        out.append("    if (").append(buffer).append(" != NULL) {\n");
+        out.append("        ").append(address).append(" = (*env)->GetDirectBufferAddress(env, ").append(buffer).append(");\n");
+        out.append("        ").append(size).append(" = (*env)->GetDirectBufferCapacity(env, ").append(buffer).append(");\n");
+        out.append("    ");
+        generateDeleteLocalRef(out, buffer, "    ");
+        out.append('\n');
+        out.append("    }\n");
+        out.append("    if (").append(capacity).append(" != NULL) {\n");
+        out.append("        *").append(capacity).append(" = ").append(size).append(";\n");
+        out.append("    }\n");
+        out.append("    return ").append(address).append(";\n");
+        out.append("}\n");
+    }
+
+    public static void generateWrapDeclaration(StringBuilder out, String functionName, boolean instance) {
+        generateWrapSignature(out, functionName, instance);
+        out.append(";\n");
+    }
+
+    public static void generateWrapImplementation(StringBuilder out, String functionName, String writeName, boolean instance) {
+        generateWrapSignature(out, functionName, instance);
+        out.append(" {\n");
+        out.append("    jobject buffer = (*env)->NewDirectByteBuffer(env, address, capacity);\n");
+        out.append("    if (buffer == NULL) {\n");
+        out.append("        return;\n");
+        out.append("    }\n");
+        out.append("    ").append(writeName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        out.append(", buffer);\n");
+        generateDeleteLocalRef(out, "buffer", "    ");
+        out.append('\n');
+        out.append("}\n");
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Generates a table of all jvalue array variants, indexed by an ID per wrapper. The IDs are assigned in the order of the
+ * function names, so they are stable as long as the set of wrapped elements does not change. A checksum of the
+ * assignment allows dispatchers compiled against a different header to detect that it did change.
+ */
+public abstract class DispatchTable {
+    private DispatchTable() {
+    }
+
+    private static List<MethodBackedWrapper> dispatchableElements(List<WrappedElement> elements) {
+        final List<MethodBackedWrapper> dispatchable = new ArrayList<>();
+        for (WrappedElement element : elements) {
+            if (element instanceof MethodBackedWrapper && ((MethodBackedWrapper) element).hasJValueVariant()) {
+                dispatchable.add((MethodBackedWrapper) element);
+            }
+        }
+        dispatchable.sort(Comparator.comparing(MethodBackedWrapper::getJValueFunctionName));
+        return dispatchable;
+    }
+
+    public static String generateIdName(String moduleNamespace, MethodBackedWrapper element) {
+        return moduleNamespace + "dispatch_" + element.generateFunctionName();
+    }
+
+    private static String generateFunctionTypeName(String moduleNamespace) {
+        return moduleNamespace + "DispatchFunction";
+    }
+
+    private static String generateTableName(String moduleNamespace) {
+        return moduleNamespace + "dispatch_table";
+    }
+
+    private static String generateCountName(String moduleNamespace) {
+        return moduleNamespace + "dispatch_count";
+    }
+
+    private static String generateChecksumName(String moduleNamespace) {
+        return moduleNamespace + "dispatch_checksum";
+    }
+
+    /**
+     * FNV-1a over the function name and JNI signature of every entry in ID order, truncated to 31 bits so it fits an
+     * enum constant.
+     */
+    private static int checksum(List<MethodBackedWrapper> dispatchable) {
+        final StringBuilder entries = new StringBuilder();
+        for (MethodBackedWrapper element : dispatchable) {
+            entries.append(element.getJValueFunctionName());
+            GeneratorHelper.generateJniMethodSignature(entries, element.getTypes(), element.getMethod());
+            entries.append('\n');
+        }
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < entries.length(); i++) {
+            hash ^= entries.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash & 0x7fffffff;
+    }
+
+    private static void generateChecksumSignature(StringBuilder out, String moduleNamespace) {
+        out.append("jint ").append(moduleNamespace).append("DispatchChecksum(void)");
+    }
+
+    private static void generateDispatchSignature(StringBuilder out, String moduleNamespace) {
+        out.append("jvalue ").append(moduleNamespace).append("Dispatch(JNIEnv *env, jint id, jobject instance, const jvalue *args)");
+    }
+
+    public static void generateDeclarations(StringBuilder out, String moduleNamespace, List<WrappedElement> elements) {
+        final List<MethodBackedWrapper> dispatchable = dispatchableElements(elements);
+        if (dispatchable.isEmpty()) {
+            return;
+        }
+        out.append("enum {\n");
+        for (int i = 0; i < dispatchable.size(); i++) {
+            out.append("    ").append(generateIdName(moduleNamespace, dispatchable.get(i))).append(" = ").append(i).append(",\n");
+        }
+        out.append("    ").append(generateCountName(moduleNamespace)).append(" = ").append(dispatchable.size()).append(",\n");
+        out.append("    ").append(generateChecksumName(moduleNamespace)).append(" = ").append(String.format("0x%08X", checksum(dispatchable))).append("\n");
+        out.append("};\n");
+        out.append("typedef jvalue (*").append(generateFunctionTypeName(moduleNamespace)).append(")(JNIEnv *env, jobject instance, const jvalue *args);\n");
+        out.append("extern const ").append(generateFunctionTypeName(moduleNamespace)).append(' ').append(generateTableName(moduleNamespace))
+                .append('[').append(generateCountName(moduleNamespace)).append("];\n");
+        generateDispatchSignature(out, moduleNamespace);
+        out.append(";\n");
+        generateChecksumSignature(out, moduleNamespace);
+        out.append(";\n\n");
+    }
+
+    /**
+     * Each table entry is a thunk adapting the jvalue array variant to the uniform function type. Static methods and
+     * constructors ignore the instance.
+     */
+    public static void generateImplementations(StringBuilder out, String moduleNamespace, List<WrappedElement> elements) {
+        final List<MethodBackedWrapper> dispatchable = dispatchableElements(elements);
+        if (dispatchable.isEmpty()) {
+            return;
+        }
+        for (MethodBackedWrapper element : dispatchable) {
+            final TypeMirror returnType = element.getReturnType();
+            out.append("static jvalue ").append(moduleNamespace).append("dispatch_thunk_").append(element.generateFunctionName())
+                    .append("(JNIEnv *env, jobject instance, const jvalue *args) {\n");
+            if (!element.isInstance()) {
+                out.append("    (void) instance;\n");
+            }
+            out.append("    jvalue result;\n");
+            out.append("    result.j = 0;\n");
+            out.append("    ");
+            if (returnType.getKind() != TypeKind.VOID) {
+                out.append("result.").append(TypeHelper.getJValueMember(returnType)).append(" = ");
+            }
+            out.append(element.getJValueFunctionName()).append("(env");
+            if (element.isInstance()) {
+                out.append(", instance");
+            }
+            out.append(", args);\n");
+            out.append("    return result;\n");
+            out.append("}\n\n");
+        }
+
+        out.append("const ").append(generateFunctionTypeName(moduleNamespace)).append(' ').append(generateTableName(moduleNamespace))
+                .append('[').append(generateCountName(moduleNamespace)).append("] = {\n");
+        for (MethodBackedWrapper element : dispatchable) {
+            out.append("    [").append(generateIdName(moduleNamespace, element)).append("] = ")
+                    .append(moduleNamespace).append("dispatch_thunk_").append(element.generateFunctionName()).append(",\n");
+        }
+        out.append("};\n\n");
+
+        generateDispatchSignature(out, moduleNamespace);
+        out.append(" {\n");
+        out.append("    if (id < 0 || id >= ").append(generateCountName(moduleNamespace)).append(") {\n");
+        out.append("        jvalue none;\n");
+        out.append("        none.j = 0;\n");
+        out.append("        return none;\n");
+        out.append("    }\n");
+        out.append("    return ").append(generateTableName(moduleNamespace)).append("[id](env, instance, args);\n");
+        out.append("}\n\n");
+
+        // the checksum the library was built with, as opposed to the one in the header a dispatcher was compiled with
+        generateChecksumSignature(out, moduleNamespace);
+        out.append(" {\n");
+        out.append("    return ").append(generateChecksumName(moduleNamespace)).append(";\n");
+        out.append("}\n\n");
+    }
+}
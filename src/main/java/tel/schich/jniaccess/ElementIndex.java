@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.QualifiedNameable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memoizes the positions of elements within their enclosing element and the fully qualified names of elements. Both
+ * would otherwise be recomputed for every symbol by walking all enclosed elements of a class, which is quadratic for
+ * classes with many accessed members.
+ */
+public class ElementIndex {
+    private final Map<Element, Map<Element, Integer>> indices = new HashMap<>();
+    private final Map<Element, String> qualifiedNames = new HashMap<>();
+
+    public int indexInParent(Element element) {
+        final Element parent = element.getEnclosingElement();
+        Map<Element, Integer> index = indices.get(parent);
+        if (index == null) {
+            final List<? extends Element> enclosedElements = parent.getEnclosedElements();
+            index = new HashMap<>(enclosedElements.size() * 2);
+            int i = 0;
+            for (Element enclosedElement : enclosedElements) {
+                index.put(enclosedElement, i++);
+            }
+            indices.put(parent, index);
+        }
+        final Integer i = index.get(element);
+        if (i == null) {
+            throw new RuntimeException("Could not find the element in its enclosing element: " + element);
+        }
+        return i;
+    }
+
+    public String qualifiedName(Element element) {
+        String name = qualifiedNames.get(element);
+        if (name == null) {
+            if (element instanceof QualifiedNameable) {
+                name = ((QualifiedNameable) element).getQualifiedName().toString();
+            } else {
+                final Element enclosing = element.getEnclosingElement();
+                final String prefix;
+                if (enclosing != null) {
+                    prefix = qualifiedName(enclosing) + ".";
+                } else {
+                    prefix = "";
+                }
+                name = prefix + element.getSimpleName().toString();
+            }
+            qualifiedNames.put(element, name);
+        }
+        return name;
+    }
+}
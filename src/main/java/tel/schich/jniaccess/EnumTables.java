@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates a C enum per Java enum used by the wrapped elements, and helpers converting between the C values and the
+ * Java constants, which are cached as global references by the module's OnLoad.
+ */
+public abstract class EnumTables {
+    private EnumTables() {
+    }
+
+    static TypeElement getEnumElement(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final Element element = ((DeclaredType) type).asElement();
+        if (element.getKind() != ElementKind.ENUM) {
+            return null;
+        }
+        return (TypeElement) element;
+    }
+
+    static List<Element> getConstants(TypeElement enumElement) {
+        final List<Element> constants = new ArrayList<>();
+        for (Element element : enumElement.getEnclosedElements()) {
+            if (element.getKind() == ElementKind.ENUM_CONSTANT) {
+                constants.add(element);
+            }
+        }
+        return constants;
+    }
+
+    private static void addEnum(Map<String, TypeElement> enums, TypeMirror type) {
+        final TypeElement enumElement = getEnumElement(type);
+        // C has no empty enums
+        if (enumElement != null && !getConstants(enumElement).isEmpty()) {
+            enums.putIfAbsent(enumElement.getQualifiedName().toString(), enumElement);
+        }
+    }
+
+    /**
+     * Finds the enums used as field types and as parameter and return types of methods.
+     */
+    static List<TypeElement> findEnums(List<WrappedElement> elements) {
+        final Map<String, TypeElement> enums = new LinkedHashMap<>();
+        for (WrappedElement element : elements) {
+            if (element instanceof FieldWrapper) {
+                addEnum(enums, ((FieldWrapper) element).getField().getType());
+            } else if (element instanceof MethodBackedWrapper) {
+                final MethodBackedWrapper method = (MethodBackedWrapper) element;
+                addEnum(enums, method.getReturnType());
+                for (MethodParam param : method.getMethod().getParams()) {
+                    addEnum(enums, param.getType());
+                }
+            }
+        }
+        return new ArrayList<>(enums.values());
+    }
+
+    private static String symbolName(TypeElement enumElement) {
+        return enumElement.getQualifiedName().toString().replace('.', '_');
+    }
+
+    public static String typeName(TypeElement enumElement) {
+        return "enum_" + symbolName(enumElement);
+    }
+
+    private static String constantName(TypeElement enumElement, Element constant) {
+        return symbolName(enumElement) + "_" + constant.getSimpleName();
+    }
+
+    private static String cacheSymbol(String moduleNamespace, TypeElement enumElement) {
+        return moduleNamespace + "enum_" + symbolName(enumElement);
+    }
+
+    private static String ordinalSymbol(String moduleNamespace) {
+        return moduleNamespace + "enum_ordinal";
+    }
+
+    private static void toJavaSignature(StringBuilder out, TypeElement enumElement) {
+        out.append("jobject to_java_").append(symbolName(enumElement)).append("(JNIEnv *env, ").append(typeName(enumElement)).append(" value)");
+    }
+
+    private static void fromJavaSignature(StringBuilder out, TypeElement enumElement) {
+        out.append(typeName(enumElement)).append(" from_java_").append(symbolName(enumElement)).append("(JNIEnv *env, jobject value)");
+    }
+
+    public static void generateDeclarations(StringBuilder out, List<TypeElement> enums) {
+        for (TypeElement enumElement : enums) {
+            out.append("typedef enum ").append(typeName(enumElement)).append(" {\n");
+            final List<Element> constants = getConstants(enumElement);
+            for (int i = 0; i < constants.size(); i++) {
+                out.append("    ").append(constantName(enumElement, constants.get(i))).append(" = ").append(i).append(",\n");
+            }
+            out.append("} ").append(typeName(enumElement)).append(";\n\n");
+            toJavaSignature(out, enumElement);
+            out.append(";\n");
+            fromJavaSignature(out, enumElement);
+            out.append(";\n\n");
+        }
+    }
+
+    /**
+     * to_java returns a new local reference, or NULL for values out of range. from_java returns -1 for null.
+     */
+    public static void generateImplementations(StringBuilder out, String moduleNamespace, List<TypeElement> enums) {
+        if (enums.isEmpty()) {
+            return;
+        }
+        out.append("static jmethodID ").append(ordinalSymbol(moduleNamespace)).append(";\n");
+        for (TypeElement enumElement : enums) {
+            out.append("static jobject ").append(cacheSymbol(moduleNamespace, enumElement)).append('[').append(getConstants(enumElement).size()).append("];\n");
+        }
+        out.append("\n");
+        for (TypeElement enumElement : enums) {
+            final String cache = cacheSymbol(moduleNamespace, enumElement);
+            toJavaSignature(out, enumElement);
+            out.append(" {\n");
+            out.append("    if ((int) value < 0 || (int) value >= ").append(getConstants(enumElement).size()).append(") {\n");
+            out.append("        return NULL;\n");
+            out.append("    }\n");
+            out.append("    return (*env)->NewLocalRef(env, ").append(cache).append("[value]);\n");
+            out.append("}\n\n");
+
+            fromJavaSignature(out, enumElement);
+            out.append(" {\n");
+            out.append("    if (value == NULL) {\n");
+            out.append("        return (").append(typeName(enumElement)).append(") -1;\n");
+            out.append("    }\n");
+            out.append("    return (").append(typeName(enumElement)).append(") (*env)->CallIntMethod(env, value, ").append(ordinalSymbol(moduleNamespace)).append(");\n");
+            out.append("}\n\n");
+        }
+    }
+
+    /**
+     * Generates the part of OnLoad caching the ordinal method and the constants. It comes last in OnLoad, so a failed
+     * lookup returns right away, leaving its exception pending.
+     */
+    public static void generateLoad(StringBuilder out, String moduleNamespace, List<TypeElement> enums) {
+        if (enums.isEmpty()) {
+            return;
+        }
+        final String ordinal = ordinalSymbol(moduleNamespace);
+        out.append("    {\n");
+        out.append("        jclass class = (*env)->FindClass(env, \"java/lang/Enum\");\n");
+        out.append("        if (class == NULL) {\n");
+        out.append("            return;\n");
+        out.append("        }\n");
+        out.append("        ").append(ordinal).append(" = (*env)->GetMethodID(env, class, \"ordinal\", \"()I\");\n");
+        out.append("        (*env)->DeleteLocalRef(env, class);\n");
+        out.append("        if (").append(ordinal).append(" == NULL) {\n");
+        out.append("            return;\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        for (TypeElement enumElement : enums) {
+            // the binary name, nested enums are separated by '$'
+            final String typeName = TypeHelper.getClassTypeName(enumElement);
+            final String cache = cacheSymbol(moduleNamespace, enumElement);
+            out.append("    {\n");
+            out.append("        jclass class = (*env)->FindClass(env, \"").append(typeName).append("\");\n");
+            out.append("        jfieldID field;\n");
+            out.append("        jobject constant;\n");
+            out.append("        if (class == NULL) {\n");
+            out.append("            return;\n");
+            out.append("        }\n");
+            for (Element constant : getConstants(enumElement)) {
+                out.append("        field = (*env)->GetStaticFieldID(env, class, \"").append(constant.getSimpleName()).append("\", \"L").append(typeName).append(";\");\n");
+                out.append("        if (field == NULL) {\n");
+                out.append("            (*env)->DeleteLocalRef(env, class);\n");
+                out.append("            return;\n");
+                out.append("        }\n");
+                out.append("        constant = (*env)->GetStaticObjectField(env, class, field);\n");
+                out.append("        if (constant == NULL) {\n");
+                out.append("            (*env)->DeleteLocalRef(env, class);\n");
+                out.append("            return;\n");
+                out.append("        }\n");
+                GeneratorHelper.generateNewGlobalRef(out, "constant", cache + "[" + constantName(enumElement, constant) + "]", null, "        ");
+                out.append("\n");
+                out.append("        (*env)->DeleteLocalRef(env, constant);\n");
+            }
+            out.append("        (*env)->DeleteLocalRef(env, class);\n");
+            out.append("    }\n");
+        }
+    }
+
+    public static void generateUnload(StringBuilder out, String moduleNamespace, List<TypeElement> enums) {
+        for (TypeElement enumElement : enums) {
+            final String cache = cacheSymbol(moduleNamespace, enumElement);
+            for (Element constant : getConstants(enumElement)) {
+                final String symbol = cache + "[" + constantName(enumElement, constant) + "]";
+                GeneratorHelper.generateDeleteGlobalRef(out, symbol, "    ");
+                out.append("\n");
+                out.append("    ").append(symbol).append(" = NULL;\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.TypeMirror;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a struct per host class mirroring its wrapped instance fields, together with functions
+ * copying all of them from or to an instance in a single call.
+ */
+public class FieldStructs {
+
+    private static final Set<String> C_KEYWORDS = new HashSet<>(Arrays.asList(
+            "auto", "extern", "inline", "register", "restrict", "signed", "sizeof", "struct", "typedef", "union", "unsigned"
+    ));
+
+    private static Map<String, List<FieldWrapper>> fieldsByClass(List<WrappedElement> wrappedElements) {
+        Map<String, List<FieldWrapper>> fieldsByClass = new LinkedHashMap<>();
+        for (WrappedElement element : wrappedElements) {
+            if (element instanceof FieldWrapper && !((FieldWrapper) element).getField().isStatic()) {
+                fieldsByClass
+                        .computeIfAbsent(element.getHostClass().getTypeName(), k -> new ArrayList<>())
+                        .add((FieldWrapper) element);
+            }
+        }
+        return fieldsByClass;
+    }
+
+    static String structName(AccessedClass clazz) {
+        return GeneratorHelper.functionName("fields", clazz);
+    }
+
+    static String memberName(AccessedField field) {
+        final String name = field.getName();
+        if (C_KEYWORDS.contains(name)) {
+            return name + "_";
+        }
+        return name;
+    }
+
+    private static List<FieldWrapper> writableFields(List<FieldWrapper> fields) {
+        List<FieldWrapper> writable = new ArrayList<>();
+        for (FieldWrapper field : fields) {
+            if (!field.getField().isFinal()) {
+                writable.add(field);
+            }
+        }
+        return writable;
+    }
+
+    private static void readAllSignature(StringBuilder out, AccessedClass clazz) {
+        readAllSignature(out, clazz, "");
+    }
+
+    private static void readAllSignature(StringBuilder out, AccessedClass clazz, String suffix) {
+        final String structName = structName(clazz);
+        out.append("void ").append(GeneratorHelper.functionName("read_all", clazz)).append(suffix)
+                .append("(JNIEnv *env, jobject instance, ").append(structName).append(" *out)");
+    }
+
+    private static void writeAllSignature(StringBuilder out, AccessedClass clazz) {
+        writeAllSignature(out, clazz, "");
+    }
+
+    private static void writeAllSignature(StringBuilder out, AccessedClass clazz, String suffix) {
+        final String structName = structName(clazz);
+        out.append("void ").append(GeneratorHelper.functionName("write_all", clazz)).append(suffix)
+                .append("(JNIEnv *env, jobject instance, const ").append(structName).append(" *in)");
+    }
+
+    static void generateDeclarations(StringBuilder out, List<WrappedElement> wrappedElements) {
+        for (List<FieldWrapper> fields : fieldsByClass(wrappedElements).values()) {
+            final AccessedClass clazz = fields.get(0).getHostClass();
+            final String structName = structName(clazz);
+            out.append("/* Object fields read by ").append(GeneratorHelper.functionName("read_all", clazz)).append(" are new local references owned by the caller. */\n");
+            out.append("typedef struct ").append(structName).append(" {\n");
+            for (FieldWrapper field : fields) {
+                GeneratorHelper.generateDeclaration(out, TypeHelper.getCType(field.getTypes(), field.getField().getType()), memberName(field.getField()), "    ");
+                out.append("\n");
+            }
+            out.append("} ").append(structName).append(";\n\n");
+
+            readAllSignature(out, clazz);
+            out.append(";\n");
+            if (!writableFields(fields).isEmpty()) {
+                writeAllSignature(out, clazz);
+                out.append(";\n");
+            }
+            out.append("\n");
+        }
+    }
+
+    /**
+     * The bulk accessors are instrumented like the wrappers of the fields, as they access them without going through
+     * those.
+     */
+    static void generateImplementations(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements) {
+        for (List<FieldWrapper> fields : fieldsByClass(wrappedElements).values()) {
+            final FieldWrapper first = fields.get(0);
+            final AccessedClass clazz = first.getHostClass();
+            final TypeMirror voidType = TypeHelper.getVoid(first.getTypes());
+            first.generateInstrumented(out, moduleNamespace, GeneratorHelper.functionName("read_all", clazz), voidType, "env, instance, out", (it, suffix) -> readAllSignature(it, clazz, suffix), it -> {
+                it.append(" {\n");
+                generateBulkAccess(it, moduleNamespace, fields, false);
+                it.append("}\n");
+            });
+            out.append("\n");
+
+            final List<FieldWrapper> writable = writableFields(fields);
+            if (!writable.isEmpty()) {
+                first.generateInstrumented(out, moduleNamespace, GeneratorHelper.functionName("write_all", clazz), voidType, "env, instance, in", (it, suffix) -> writeAllSignature(it, clazz, suffix), it -> {
+                    it.append(" {\n");
+                    generateBulkAccess(it, moduleNamespace, writable, true);
+                    it.append("}\n");
+                });
+                out.append("\n");
+            }
+        }
+    }
+
+    /**
+     * Fields without a persistent cache share a single class lookup, everything else takes the cached IDs.
+     */
+    private static void generateBulkAccess(StringBuilder out, String moduleNamespace, List<FieldWrapper> fields, boolean set) {
+        final String classSymbol = "class";
+        boolean lookupClass = false;
+        for (FieldWrapper field : fields) {
+            if (GeneratorHelper.createsLocalClassRef(field, false)) {
+                lookupClass = true;
+                break;
+            }
+        }
+        if (lookupClass) {
+            GeneratorHelper.generateClassLookup(out, classSymbol, true, fields.get(0).getHostClass(), "    ");
+            out.append("\n");
+            out.append("    if (").append(classSymbol).append(" == NULL) {\n");
+            out.append("        return;\n");
+            out.append("    }\n");
+        }
+
+        for (FieldWrapper wrapper : fields) {
+            final AccessedField field = wrapper.getField();
+            final String fieldSymbol = "field_" + memberName(field);
+            switch (wrapper.getCacheMode()) {
+                case EAGER_PERSISTENT:
+                    out.append("    ");
+                    GeneratorHelper.generateFieldAssignment(out, fieldSymbol, field, moduleNamespace);
+                    break;
+                case LAZY_PERSISTENT:
+                    out.append("    ");
+                    GeneratorHelper.generateLazyAssignment(out, "jfieldID", fieldSymbol, wrapper, moduleNamespace);
+                    break;
+                default:
+                    GeneratorHelper.generateFieldLookup(wrapper.getTypes(), out, fieldSymbol, true, classSymbol, field, "    ");
+            }
+            out.append("\n");
+        }
+
+        for (FieldWrapper wrapper : fields) {
+            final AccessedField field = wrapper.getField();
+            final String fieldSymbol = "field_" + memberName(field);
+            final String helperType = TypeHelper.getJNIHelperType(field.getType());
+            if (set) {
+                out.append("    (*env)->Set").append(helperType).append("Field(env, instance, ").append(fieldSymbol)
+                        .append(", in->").append(memberName(field)).append(");\n");
+            } else {
+                out.append("    out->").append(memberName(field)).append(" = ");
+                if (!field.getType().getKind().isPrimitive()) {
+                    out.append('(').append(TypeHelper.getCType(wrapper.getTypes(), field.getType())).append(") ");
+                }
+                out.append("(*env)->Get").append(helperType).append("Field(env, instance, ").append(fieldSymbol).append(");\n");
+            }
+        }
+
+        if (lookupClass) {
+            GeneratorHelper.generateDeleteLocalRef(out, classSymbol, "    ");
+            out.append("\n");
+        }
+    }
+}
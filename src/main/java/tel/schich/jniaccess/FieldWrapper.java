@@ -22,6 +22,7 @@
  */
 package tel.schich.jniaccess;
 
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 
 import java.util.Collections;
@@ -33,113 +34,248 @@ public class FieldWrapper extends WrappedElement {
     private final AccessedClass clazz;
     private final AccessedField field;
     private final List<MethodParam> writeParams;
+    private final ArrayAccess arrayAccess;
+    private final boolean exceptionStatus;
+    private final String constantValue;
 
-    public FieldWrapper(Types types, CacheMode cacheMode, AccessedClass clazz, AccessedField field) {
-        super(types, cacheMode);
+    public FieldWrapper(Types types, CacheMode cacheMode, GeneratorOptions options, AccessedClass clazz, AccessedField field, ArrayAccess arrayAccess, boolean exceptionStatus) {
+        super(types, cacheMode, options);
         this.clazz = clazz;
         this.field = field;
+        this.arrayAccess = arrayAccess;
+        this.exceptionStatus = exceptionStatus;
         writeParams = Collections.singletonList(new MethodParam("value", field.getElement(), field.getType()));
+        constantValue = generateConstantLiteral(field);
+    }
+
+    public static boolean isConstant(AccessedField field) {
+        return generateConstantLiteral(field) != null;
+    }
+
+    /**
+     * Primitive compile-time constants are inlined by javac, so their value can't change without recompilation.
+     *
+     * @return the value as a C literal, or null if the field is not such a constant
+     */
+    private static String generateConstantLiteral(AccessedField field) {
+        if (!field.isStatic() || !field.isFinal() || !field.getType().getKind().isPrimitive()) {
+            return null;
+        }
+        final Object value = field.getElement().getConstantValue();
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "JNI_TRUE" : "JNI_FALSE";
+        } else if (value instanceof Character) {
+            return String.valueOf((int) (Character) value);
+        } else if (value instanceof Integer) {
+            return (Integer) value == Integer.MIN_VALUE ? "(-2147483647 - 1)" : value.toString();
+        } else if (value instanceof Long) {
+            return (Long) value == Long.MIN_VALUE ? "(-9223372036854775807LL - 1)" : value + "LL";
+        } else if (value instanceof Float) {
+            return Float.isInfinite((Float) value) || Float.isNaN((Float) value) ? null : value + "f";
+        } else if (value instanceof Double) {
+            return Double.isInfinite((Double) value) || Double.isNaN((Double) value) ? null : value.toString();
+        } else if (value instanceof Number) {
+            return value.toString();
+        }
+        return null;
     }
 
     public AccessedField getField() {
         return field;
     }
 
+    @Override
+    public boolean hasStringResult() {
+        return TypeHelper.isString(getTypes(), field.getType());
+    }
+
     @Override
     public AccessedClass getHostClass() {
         return clazz;
     }
 
-    private void generateReadSig(StringBuilder out) {
-        String name = GeneratorHelper.functionName("read", clazz, field.getName());
+    private String generateReadFunctionName() {
+        return GeneratorHelper.functionName("read", clazz, field.getName());
+    }
 
-        generateFunctionSignature(getTypes(), out, name, field.getType(), !field.isStatic(), Collections.emptyList(), false);
+    private void generateReadSig(StringBuilder out, String scopeType) {
+        generateReadSig(out, scopeType, "");
     }
 
-    private void generateReadImpl(StringBuilder out, String moduleNamespace) {
-        generateReadSig(out);
-        generateImplBody(out, false, moduleNamespace);
+    private void generateReadSig(StringBuilder out, String scopeType, String suffix) {
+        generateFunctionSignature(getTypes(), out, generateReadFunctionName(), field.getType(), !field.isStatic(), Collections.emptyList(), false, scopeType, suffix);
+    }
+
+    private void generateReadImpl(StringBuilder out, String moduleNamespace, boolean scoped) {
+        final String functionName = scoped ? generateReadFunctionName() + SCOPED_FUNCTION_SUFFIX : generateReadFunctionName();
+        final String arguments = Statistics.arguments(scoped ? SCOPE_PARAMETER : null, !field.isStatic(), Collections.emptyList());
+        generateInstrumented(out, moduleNamespace, functionName, field.getType(), arguments,
+                (it, suffix) -> generateReadSig(it, scoped ? scopeTypeName(moduleNamespace) : null, suffix),
+                it -> generateImplBody(it, false, moduleNamespace, scoped));
     }
 
     private String generateWriteFunctionName() {
         return GeneratorHelper.functionName("write", clazz, field.getName());
     }
 
-    private void generateWriteSig(StringBuilder out, boolean cStrings) {
-        generateFunctionSignature(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, cStrings);
+    private void generateWriteSig(StringBuilder out, boolean cStrings, String scopeType) {
+        generateWriteSig(out, cStrings, scopeType, "");
+    }
+
+    private void generateWriteSig(StringBuilder out, boolean cStrings, String scopeType, String suffix) {
+        generateFunctionSignature(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, cStrings, scopeType, suffix);
     }
 
-    private void generateWriteImpl(StringBuilder out, String moduleNamespace) {
-        generateWriteSig(out, false);
-        generateImplBody(out, true, moduleNamespace);
+    private void generateWriteImpl(StringBuilder out, String moduleNamespace, boolean scoped) {
+        final String functionName = scoped ? generateWriteFunctionName() + SCOPED_FUNCTION_SUFFIX : generateWriteFunctionName();
+        final String arguments = Statistics.arguments(scoped ? SCOPE_PARAMETER : null, !field.isStatic(), writeParams);
+        generateInstrumented(out, moduleNamespace, functionName, TypeHelper.getVoid(getTypes()), arguments,
+                (it, suffix) -> generateWriteSig(it, false, scoped ? scopeTypeName(moduleNamespace) : null, suffix),
+                it -> generateImplBody(it, true, moduleNamespace, scoped));
     }
 
-    private void generateImplBody(StringBuilder out, boolean set, String moduleNamespace) {
+    private void generateImplBody(StringBuilder out, boolean set, String moduleNamespace, boolean scoped) {
         out.append(" {\n");
         final String classSymbol = "class";
         final String fieldSymbol = "field";
-        if (getCacheMode() == CacheMode.EAGER_PERSISTENT) {
+        final TypeMirror returnType = set ? TypeHelper.getVoid(getTypes()) : field.getType();
+        final boolean localFrame = generateLocalFramePush(out, this, scoped, returnType, 0);
+        generateLookups(out, this, field.isStatic(), classSymbol, fieldSymbol, moduleNamespace, scoped);
+        generateReturningCall(out, this, scoped, localFrame, classSymbol, returnType, "result", (it) -> {
+            it.append("(*env)->");
+            it.append(set ? "Set" : "Get");
             if (field.isStatic()) {
-                out.append("    ");
-                generateClassAssignment(out, classSymbol, getHostClass(), moduleNamespace);
-                out.append('\n');
+                it.append("Static");
             }
-            out.append("    ");
-            generateFieldAssignment(out, fieldSymbol, field, moduleNamespace);
-        } else {
-            generateClassLookup(out, classSymbol, true, clazz, "    ");
-            out.append('\n');
-            generateFieldLookup(getTypes(), out, fieldSymbol, true, classSymbol, field, "    ");
-        }
-        out.append('\n');
-        out.append("    ");
-        if (!set) {
-            out.append("return ");
-        }
-        out.append("(*env)->");
-        out.append(set ? "Set" : "Get");
-        if (field.isStatic()) {
-            out.append("Static");
-        }
-        out.append(TypeHelper.getJNIHelperType(field.getType()));
-        out.append("Field(env, ");
-        out.append(field.isStatic() ? classSymbol : "instance");
-        out.append(", ");
-        out.append(fieldSymbol);
-        if (set) {
-            out.append(", value");
-        }
-        out.append(");\n");
+            it.append(TypeHelper.getJNIHelperType(field.getType()));
+            it.append("Field(env, ");
+            it.append(field.isStatic() ? classSymbol : "instance");
+            it.append(", ");
+            it.append(fieldSymbol);
+            if (set) {
+                it.append(", value");
+            }
+            it.append(")");
+        });
         out.append("}\n");
     }
 
     @Override
-    public void generateDeclarations(StringBuilder out) {
-        generateReadSig(out);
-        out.append(";\n");
+    public void generateDeclarations(StringBuilder out, String moduleNamespace) {
+        if (constantValue != null) {
+            out.append("static inline ");
+            generateReadSig(out, null);
+            out.append(" {\n");
+            out.append("    (void) env;\n");
+            out.append("    return ").append(constantValue).append(";\n");
+            out.append("}\n");
+        } else {
+            generateReadSig(out, null);
+            out.append(";\n");
+        }
+        if (exceptionStatus) {
+            StatusVariants.generateDeclaration(getTypes(), out, generateReadFunctionName(), field.getType(), !field.isStatic(), Collections.emptyList());
+        }
+        if (hasStringResult()) {
+            CStringResults.generateDeclaration(getTypes(), out, generateReadFunctionName() + C_STRING_FUNCTION_SUFFIX, !field.isStatic(), Collections.emptyList(), false);
+        }
         if (!field.isFinal()) {
-            generateWriteSig(out, false);
+            generateWriteSig(out, false, null);
             out.append(";\n");
+            if (exceptionStatus) {
+                StatusVariants.generateDeclaration(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams);
+            }
             if (TypeHelper.isString(getTypes(), field.getType())) {
-                generateWriteSig(out, true);
+                generateWriteSig(out, true, null);
+                out.append(";\n");
+            }
+        }
+        if (getCacheMode().isTemporary()) {
+            final String scopeType = scopeTypeName(moduleNamespace);
+            generateReadSig(out, scopeType);
+            out.append(";\n");
+            if (!field.isFinal()) {
+                generateWriteSig(out, false, scopeType);
                 out.append(";\n");
             }
         }
+        if (getOptions().isJniLifecycle()) {
+            generateEnvlessFunctionSignature(getTypes(), out, generateReadFunctionName(), field.getType(), !field.isStatic(), Collections.emptyList(), false);
+            out.append(";\n");
+            if (!field.isFinal()) {
+                generateEnvlessFunctionSignature(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, false);
+                out.append(";\n");
+                if (TypeHelper.isString(getTypes(), field.getType())) {
+                    generateEnvlessFunctionSignature(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, true);
+                    out.append(";\n");
+                }
+            }
+        }
+        ArrayAccessors.generateDeclarations(getTypes(), out, arrayAccess, "read", clazz, field.getName(), !field.isStatic(), Collections.emptyList(), field.getType(), true);
+        if (TypeHelper.isByteBuffer(getTypes(), field.getType())) {
+            DirectBuffers.generateAddressDeclaration(getTypes(), out, GeneratorHelper.functionName("read_address", clazz, field.getName()), !field.isStatic(), Collections.emptyList());
+            if (!field.isFinal()) {
+                DirectBuffers.generateWrapDeclaration(out, GeneratorHelper.functionName("write_address", clazz, field.getName()), !field.isStatic());
+            }
+        }
         out.append("\n");
     }
 
     @Override
     public void generateImplementations(StringBuilder out, String moduleNamespace) {
-        generateReadImpl(out, moduleNamespace);
-        out.append("\n");
+        if (constantValue == null) {
+            generateReadImpl(out, moduleNamespace, false);
+            out.append("\n");
+        }
+        if (exceptionStatus) {
+            StatusVariants.generateImplementation(getTypes(), out, generateReadFunctionName(), field.getType(), !field.isStatic(), Collections.emptyList());
+            out.append("\n");
+        }
+        if (hasStringResult()) {
+            CStringResults.generateImplementation(getTypes(), out, moduleNamespace, generateReadFunctionName() + C_STRING_FUNCTION_SUFFIX, generateReadFunctionName(), !field.isStatic(), Collections.emptyList(), false);
+            out.append("\n");
+        }
+        if (getCacheMode().isTemporary()) {
+            generateReadImpl(out, moduleNamespace, true);
+            out.append("\n");
+        }
         if (!field.isFinal()) {
-            generateWriteImpl(out, moduleNamespace);
+            generateWriteImpl(out, moduleNamespace, false);
             out.append("\n");
+            if (exceptionStatus) {
+                StatusVariants.generateImplementation(getTypes(), out, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams);
+                out.append("\n");
+            }
+            if (getCacheMode().isTemporary()) {
+                generateWriteImpl(out, moduleNamespace, true);
+                out.append("\n");
+            }
             if (TypeHelper.isString(getTypes(), field.getType())) {
                 generateJStringFunctionOverload(getTypes(), out, generateWriteFunctionName(), !field.isStatic(), TypeHelper.getVoid(getTypes()), writeParams);
                 out.append("\n");
             }
         }
+        if (getOptions().isJniLifecycle()) {
+            generateEnvlessFunctionOverload(getTypes(), out, moduleNamespace, generateReadFunctionName(), field.getType(), !field.isStatic(), Collections.emptyList(), false);
+            out.append("\n");
+            if (!field.isFinal()) {
+                generateEnvlessFunctionOverload(getTypes(), out, moduleNamespace, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, false);
+                out.append("\n");
+                if (TypeHelper.isString(getTypes(), field.getType())) {
+                    generateEnvlessFunctionOverload(getTypes(), out, moduleNamespace, generateWriteFunctionName(), TypeHelper.getVoid(getTypes()), !field.isStatic(), writeParams, true);
+                    out.append("\n");
+                }
+            }
+        }
+        ArrayAccessors.generateImplementations(getTypes(), out, arrayAccess, "read", generateReadFunctionName(), clazz, field.getName(), !field.isStatic(), Collections.emptyList(), field.getType(), true);
+        if (TypeHelper.isByteBuffer(getTypes(), field.getType())) {
+            DirectBuffers.generateAddressImplementation(getTypes(), out, GeneratorHelper.functionName("read_address", clazz, field.getName()), generateReadFunctionName(), !field.isStatic(), Collections.emptyList());
+            out.append("\n");
+            if (!field.isFinal()) {
+                DirectBuffers.generateWrapImplementation(out, GeneratorHelper.functionName("write_address", clazz, field.getName()), generateWriteFunctionName(), !field.isStatic());
+                out.append("\n");
+            }
+        }
         out.append("\n");
     }
 }
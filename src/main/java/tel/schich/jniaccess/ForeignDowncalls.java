@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+/**
+ * Generates java.lang.foreign downcall stubs for native methods and the plain C prototypes they are bound to.
+ */
+public abstract class ForeignDowncalls {
+    public static final String CLASS_SUFFIX = "Downcalls";
+
+    private ForeignDowncalls() {
+    }
+
+    /**
+     * Primitives are passed as is, primitive arrays and ByteBuffers as address and length. Arrays live on the heap,
+     * so they can only be passed to critical downcalls.
+     */
+    public static boolean isSupported(Types types, ExecutableElement method, boolean critical) {
+        final TypeMirror returnType = method.getReturnType();
+        if (!returnType.getKind().isPrimitive() && returnType.getKind() != TypeKind.VOID) {
+            return false;
+        }
+        for (VariableElement parameter : method.getParameters()) {
+            final TypeMirror type = parameter.asType();
+            if (type.getKind().isPrimitive() || TypeHelper.isByteBuffer(types, type)) {
+                continue;
+            }
+            if (!critical || !isSupportedArray(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupportedArray(TypeMirror type) {
+        if (type.getKind() != TypeKind.ARRAY) {
+            return false;
+        }
+        final TypeKind componentKind = ((ArrayType) type).getComponentType().getKind();
+        // MemorySegment.ofArray has no boolean[] overload
+        return componentKind.isPrimitive() && componentKind != TypeKind.BOOLEAN;
+    }
+
+    public static String lengthName(MethodParam param) {
+        return param.getName() + "_length";
+    }
+
+    private static String segmentName(MethodParam param) {
+        return param.getName() + "Segment";
+    }
+
+    public static void generatePrototype(Types types, StringBuilder out, String functionName, TypeMirror returnType, List<MethodParam> params) {
+        out.append(TypeHelper.getCType(types, returnType)).append(' ').append(functionName).append('(');
+        if (params.isEmpty()) {
+            out.append("void");
+        }
+        for (int i = 0; i < params.size(); i++) {
+            final MethodParam param = params.get(i);
+            final TypeMirror type = param.getType();
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (TypeHelper.isByteBuffer(types, type)) {
+                out.append("void *").append(DirectBuffers.addressName(param));
+                out.append(", jlong ").append(lengthName(param));
+            } else if (type.getKind() == TypeKind.ARRAY) {
+                out.append(TypeHelper.getCType(types, ((ArrayType) type).getComponentType())).append(" *").append(param.getName());
+                out.append(", jsize ").append(lengthName(param));
+            } else {
+                out.append(TypeHelper.getCType(types, type)).append(' ').append(param.getName());
+            }
+        }
+        out.append(")");
+    }
+
+    private static String getLayout(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "ValueLayout.JAVA_BOOLEAN";
+            case CHAR:
+                return "ValueLayout.JAVA_CHAR";
+            case BYTE:
+                return "ValueLayout.JAVA_BYTE";
+            case SHORT:
+                return "ValueLayout.JAVA_SHORT";
+            case INT:
+                return "ValueLayout.JAVA_INT";
+            case LONG:
+                return "ValueLayout.JAVA_LONG";
+            case FLOAT:
+                return "ValueLayout.JAVA_FLOAT";
+            case DOUBLE:
+                return "ValueLayout.JAVA_DOUBLE";
+            default:
+                return "ValueLayout.ADDRESS";
+        }
+    }
+
+    static void generateFunctionDescriptor(Types types, StringBuilder out, TypeMirror returnType, List<MethodParam> params) {
+        final boolean isVoid = returnType.getKind() == TypeKind.VOID;
+        out.append("FunctionDescriptor.").append(isVoid ? "ofVoid(" : "of(");
+        boolean first = true;
+        if (!isVoid) {
+            out.append(getLayout(returnType));
+            first = false;
+        }
+        for (MethodParam param : params) {
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            final TypeMirror type = param.getType();
+            if (TypeHelper.isByteBuffer(types, type)) {
+                out.append("ValueLayout.ADDRESS, ValueLayout.JAVA_LONG");
+            } else if (type.getKind() == TypeKind.ARRAY) {
+                out.append("ValueLayout.ADDRESS, ValueLayout.JAVA_INT");
+            } else {
+                out.append(getLayout(type));
+            }
+        }
+        out.append(")");
+    }
+
+    /**
+     * Generates a class with a static method per native method, which calls the C function through a downcall
+     * handle. The receiver of instance methods is not passed.
+     */
+    public static CharSequence generateClass(Types types, String packageName, String className, String hostClassName, List<ExecutableElement> methods, List<String> functionNames, List<String> handleNames, boolean critical) {
+        final StringBuilder out = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import java.lang.foreign.FunctionDescriptor;\n");
+        out.append("import java.lang.foreign.Linker;\n");
+        out.append("import java.lang.foreign.MemorySegment;\n");
+        out.append("import java.lang.foreign.SymbolLookup;\n");
+        out.append("import java.lang.foreign.ValueLayout;\n");
+        out.append("import java.lang.invoke.MethodHandle;\n");
+        out.append("\n");
+        out.append("/**\n");
+        out.append(" * Downcalls to the native implementations of the native methods of {@link ").append(hostClassName).append("}.\n");
+        out.append(" */\n");
+        out.append("public final class ").append(className).append(" {\n");
+        out.append("    private static final Linker LINKER = Linker.nativeLinker();\n");
+        out.append("    private static final SymbolLookup LOOKUP = SymbolLookup.loaderLookup();\n");
+        out.append("\n");
+        for (int i = 0; i < methods.size(); i++) {
+            final ExecutableElement method = methods.get(i);
+            out.append("    private static final MethodHandle ").append(handleNames.get(i)).append(" = downcall(\"").append(functionNames.get(i)).append("\", ");
+            generateFunctionDescriptor(types, out, method.getReturnType(), JNIAccessProcessor.getParams(method));
+            out.append(");\n");
+        }
+        out.append("\n");
+        out.append("    private ").append(className).append("() {\n");
+        out.append("    }\n");
+        out.append("\n");
+        out.append("    private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {\n");
+        out.append("        MemorySegment symbol = LOOKUP.find(name).orElseThrow(() -> new UnsatisfiedLinkError(\"unresolved symbol: \" + name));\n");
+        out.append("        return LINKER.downcallHandle(symbol, descriptor");
+        if (critical) {
+            out.append(", Linker.Option.critical(true)");
+        }
+        out.append(");\n");
+        out.append("    }\n");
+        for (int i = 0; i < methods.size(); i++) {
+            out.append("\n");
+            generateMethod(types, out, className + "." + handleNames.get(i), methods.get(i));
+        }
+        out.append("}\n");
+        return out;
+    }
+
+    private static void generateMethod(Types types, StringBuilder out, String handle, ExecutableElement method) {
+        final TypeMirror returnType = method.getReturnType();
+        final List<MethodParam> params = JNIAccessProcessor.getParams(method);
+        out.append("    public static ").append(returnType).append(' ').append(method.getSimpleName()).append('(');
+        for (int i = 0; i < params.size(); i++) {
+            final MethodParam param = params.get(i);
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(types.erasure(param.getType())).append(' ').append(param.getName());
+        }
+        out.append(") {\n");
+        for (MethodParam param : params) {
+            final TypeMirror type = param.getType();
+            if (TypeHelper.isByteBuffer(types, type)) {
+                out.append("        MemorySegment ").append(segmentName(param)).append(" = ").append(param.getName())
+                        .append(" == null ? MemorySegment.NULL : MemorySegment.ofBuffer(").append(param.getName()).append(");\n");
+            } else if (type.getKind() == TypeKind.ARRAY) {
+                out.append("        MemorySegment ").append(segmentName(param)).append(" = ").append(param.getName())
+                        .append(" == null ? MemorySegment.NULL : MemorySegment.ofArray(").append(param.getName()).append(");\n");
+            }
+        }
+        out.append("        try {\n");
+        out.append("            ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append("return (").append(returnType).append(") ");
+        }
+        out.append(handle).append(".invokeExact(");
+        for (int i = 0; i < params.size(); i++) {
+            final MethodParam param = params.get(i);
+            final TypeMirror type = param.getType();
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (TypeHelper.isByteBuffer(types, type)) {
+                out.append(segmentName(param)).append(", ").append(param.getName()).append(" == null ? -1L : ").append(segmentName(param)).append(".byteSize()");
+            } else if (type.getKind() == TypeKind.ARRAY) {
+                out.append(segmentName(param)).append(", ").append(param.getName()).append(" == null ? -1 : ").append(param.getName()).append(".length");
+            } else {
+                out.append(param.getName());
+            }
+        }
+        out.append(");\n");
+        out.append("        } catch (RuntimeException | Error e) {\n");
+        out.append("            throw e;\n");
+        out.append("        } catch (Throwable t) {\n");
+        out.append("            throw new AssertionError(t);\n");
+        out.append("        }\n");
+        out.append("    }\n");
+    }
+}
@@ -28,19 +28,24 @@ import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public abstract class GeneratorHelper {
     public static final String C_STRING_PARAMETER_PREFIX = "c_";
     public static final String C_STRING_FUNCTION_SUFFIX = "_cstr";
+    public static final String SCOPED_FUNCTION_SUFFIX = "_scoped";
+    public static final String SCOPE_PARAMETER = "scope";
+    public static final String ENVLESS_FUNCTION_SUFFIX = "_noenv";
+    public static final String DIRECT_BUFFER_FUNCTION_SUFFIX = "_buf";
+    public static final String JVALUE_FUNCTION_SUFFIX = "_a";
+    public static final String JVALUE_PARAMETER = "args";
 
     private GeneratorHelper() {
 
     }
 
-    public static void generateFunctionSignature(Types types, StringBuilder out, AccessedMethod method, String functionName, boolean cStrings) {
-        generateFunctionSignature(types, out, method, method.getElement().getReturnType(), functionName, cStrings);
+    public static void generateFunctionSignature(Types types, StringBuilder out, AccessedMethod method, String functionName, boolean cStrings, String scopeType) {
+        generateFunctionSignature(types, out, functionName, method.getElement().getReturnType(), !method.isStatic() && !method.isConstructor(), method.getParams(), cStrings, scopeType);
     }
 
     public static void generateFunctionSignature(Types types, StringBuilder out, AccessedMethod method, TypeMirror returnType, String functionName, boolean cStrings) {
@@ -48,12 +53,30 @@ public abstract class GeneratorHelper {
     }
 
     public static void generateFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean cStrings) {
+        generateFunctionSignature(types, out, functionName, returnType, instance, params, cStrings, null);
+    }
+
+    public static void generateFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean cStrings, String scopeType) {
+        generateFunctionSignature(types, out, functionName, returnType, instance, params, cStrings, scopeType, "");
+    }
+
+    /**
+     * @param suffix appended to the complete function name, after the suffixes of the scope and C string variants
+     */
+    public static void generateFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean cStrings, String scopeType, String suffix) {
         out.append(TypeHelper.getCType(types, returnType)).append(" ");
         out.append(functionName);
+        if (scopeType != null) {
+            out.append(SCOPED_FUNCTION_SUFFIX);
+        }
         if (cStrings) {
             out.append(C_STRING_FUNCTION_SUFFIX);
         }
+        out.append(suffix);
         out.append("(JNIEnv *env");
+        if (scopeType != null) {
+            out.append(", ").append(scopeType).append(" *").append(SCOPE_PARAMETER);
+        }
         if (instance) {
             out.append(", jobject instance");
         }
@@ -61,8 +84,85 @@ public abstract class GeneratorHelper {
         out.append(")");
     }
 
-    public static void generateExternFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
-        out.append("JNIEXPORT ");
+    public static void generateJValueFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance) {
+        generateJValueFunctionSignature(types, out, functionName, returnType, instance, "");
+    }
+
+    public static void generateJValueFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, String suffix) {
+        out.append(TypeHelper.getCType(types, returnType)).append(" ");
+        out.append(functionName).append(JVALUE_FUNCTION_SUFFIX).append(suffix);
+        out.append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        out.append(", const jvalue *").append(JVALUE_PARAMETER).append(")");
+    }
+
+    public static void generateEnvlessFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean cStrings) {
+        final StringBuilder parameters = new StringBuilder();
+        if (instance) {
+            parameters.append(", jobject instance");
+        }
+        generateFunctionSignatureParameters(types, parameters, params, cStrings);
+
+        out.append(TypeHelper.getCType(types, returnType)).append(" ");
+        out.append(functionName);
+        if (cStrings) {
+            out.append(C_STRING_FUNCTION_SUFFIX);
+        }
+        out.append(ENVLESS_FUNCTION_SUFFIX);
+        out.append("(");
+        if (parameters.length() == 0) {
+            out.append("void");
+        } else {
+            out.append(parameters, 2, parameters.length());
+        }
+        out.append(")");
+    }
+
+    /**
+     * Generates a variant of the given function that takes the JNIEnv of the current thread from the module
+     * instead of a parameter.
+     */
+    public static void generateEnvlessFunctionOverload(Types types, StringBuilder out, String moduleNamespace, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean cStrings) {
+        generateEnvlessFunctionSignature(types, out, functionName, returnType, instance, params, cStrings);
+        out.append(" {\n");
+        out.append("    JNIEnv *env = ").append(ModuleLifecycle.generateEnvFunctionName(moduleNamespace)).append("();\n");
+        out.append("    if (env == NULL) {\n");
+        out.append("        return");
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append(isReference(returnType) ? " NULL" : " 0");
+        }
+        out.append(";\n");
+        out.append("    }\n");
+        out.append("    ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append("return ");
+        }
+        out.append(functionName);
+        if (cStrings) {
+            out.append(C_STRING_FUNCTION_SUFFIX);
+        }
+        out.append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ");
+            if (cStrings && TypeHelper.isString(types, param.getType())) {
+                out.append(cStringName(param));
+            } else {
+                out.append(param.getName());
+            }
+        }
+        out.append(");\n");
+        out.append("}\n");
+    }
+
+    public static void generateExternFunctionSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params, boolean exported) {
+        if (exported) {
+            out.append("JNIEXPORT ");
+        }
         out.append(TypeHelper.getCType(types, returnType)).append(" ");
         out.append("JNICALL ");
         out.append(functionName);
@@ -72,7 +172,7 @@ public abstract class GeneratorHelper {
         out.append(");");
     }
 
-    private static void generateFunctionSignatureParameters(Types types, StringBuilder out, List<MethodParam> params, boolean cStrings) {
+    public static void generateFunctionSignatureParameters(Types types, StringBuilder out, List<MethodParam> params, boolean cStrings) {
         for (MethodParam param : params) {
             final TypeMirror type = param.getType();
             final String cType;
@@ -155,7 +255,7 @@ public abstract class GeneratorHelper {
         return false;
     }
 
-    private static String deconflictSymbol(String symbol, List<MethodParam> params) {
+    public static String deconflictSymbol(String symbol, List<MethodParam> params) {
         while (symbolConflictsWithParameter(symbol, params)) {
             symbol += "_";
         }
@@ -201,7 +301,7 @@ public abstract class GeneratorHelper {
     }
 
     public static String functionName(String prefix, AccessedClass clazz) {
-        return prefix + "_" + clazz.getElement().getQualifiedName().toString().replace('.', '_');
+        return prefix + "_" + clazz.getSymbolName();
     }
 
     public static String functionName(String prefix, AccessedClass clazz, String name) {
@@ -255,29 +355,188 @@ public abstract class GeneratorHelper {
         for (MethodParam param : method.getParams()) {
             out.append(", ").append(param.getName());
         }
-        out.append(");");
+        out.append(")");
+    }
+
+    public static void generateNewObjectACreation(StringBuilder out, String classVar, String ctorVar) {
+        out.append("(*env)->NewObjectA(env, ").append(classVar).append(", ").append(ctorVar).append(", ").append(JVALUE_PARAMETER).append(")");
     }
 
-    public static void generateInstantiatingMethod(StringBuilder out, MethodBackedWrapper wrapper, ConstructorCall ctor, String moduleNamespace, BiConsumer<String, String> use) {
-        wrapper.generateSig(out, false);
+    /**
+     * Generates the body of a wrapper instantiating the class of the given constructor, the signature is up to the caller.
+     */
+    public static void generateInstantiatingMethod(StringBuilder out, MethodBackedWrapper wrapper, ConstructorCall ctor, String moduleNamespace, boolean scoped, int additionalLocalRefs, InstantiationGenerator use) {
         out.append(" {\n");
-        AccessedMethod method = ctor.getMethod();
         final String classSymbol = "class";
         final String instanceSymbol = "ctor";
-        if (wrapper.getCacheMode() == CacheMode.EAGER_PERSISTENT) {
-            out.append("    ");
-            generateClassAssignment(out, classSymbol, ctor.getClazz(), moduleNamespace);
+        final boolean localFrame = generateLocalFramePush(out, wrapper, scoped, wrapper.getReturnType(), additionalLocalRefs);
+        generateLookups(out, wrapper, true, classSymbol, instanceSymbol, moduleNamespace, scoped);
+        use.generate(classSymbol, instanceSymbol, localFrame);
+        out.append("}\n");
+    }
+
+    public interface InstantiationGenerator {
+        void generate(String classSymbol, String ctorSymbol, boolean localFrame);
+    }
+
+    private static boolean isReference(TypeMirror type) {
+        return !type.getKind().isPrimitive() && type.getKind() != TypeKind.VOID;
+    }
+
+    /**
+     * Whether the lookups of the given element create a local class reference that has to be released again.
+     */
+    public static boolean createsLocalClassRef(WrappedElement element, boolean scoped) {
+        if (scoped) {
+            return false;
+        }
+        switch (element.getCacheMode()) {
+            case EAGER_PERSISTENT:
+            case LAZY_PERSISTENT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Generates a PushLocalFrame call sized for the local references the wrapper will create, if the element uses local frames.
+     * Scoped wrappers never push a frame, as lazily resolved scope entries have to outlive the wrapper call.
+     *
+     * @return true if a frame has been pushed and has to be popped again by {@link #generateLocalRefRelease}
+     */
+    public static boolean generateLocalFramePush(StringBuilder out, WrappedElement element, boolean scoped, TypeMirror returnType, int additionalLocalRefs) {
+        if (!element.getOptions().isLocalFrames() || scoped) {
+            return false;
+        }
+        int capacity = additionalLocalRefs;
+        if (createsLocalClassRef(element, false)) {
+            capacity++;
+        }
+        if (isReference(returnType)) {
+            capacity++;
+        }
+        if (capacity == 0) {
+            return false;
+        }
+        out.append("    if ((*env)->PushLocalFrame(env, ").append(capacity).append(") != 0) {\n");
+        out.append("        return");
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append(isReference(returnType) ? " NULL" : " 0");
+        }
+        out.append(";\n");
+        out.append("    }\n");
+        return true;
+    }
+
+    /**
+     * Generates the given call expression, releases the local references created by the wrapper and returns the result, if any.
+     * Wrappers that don't hold any local references return the call's result directly.
+     */
+    public static void generateReturningCall(StringBuilder out, WrappedElement element, boolean scoped, boolean localFrame, String classSymbol, TypeMirror returnType, String resultSymbol, Consumer<StringBuilder> call) {
+        final boolean hasResult = returnType.getKind() != TypeKind.VOID;
+        out.append("    ");
+        if (!localFrame && !createsLocalClassRef(element, scoped)) {
+            if (hasResult) {
+                out.append("return ");
+            }
+            call.accept(out);
+            out.append(";\n");
+            return;
+        }
+        if (hasResult) {
+            out.append(TypeHelper.getCType(element.getTypes(), returnType)).append(' ').append(resultSymbol).append(" = ");
+        }
+        call.accept(out);
+        out.append(";\n");
+        generateLocalRefRelease(out, element, scoped, localFrame, classSymbol, returnType, hasResult ? resultSymbol : null);
+    }
+
+    /**
+     * Generates the release of the local references created by a wrapper, either by popping its local frame or by deleting the class reference.
+     */
+    public static void generateLocalRefRelease(StringBuilder out, WrappedElement element, boolean scoped, boolean localFrame, String classSymbol, TypeMirror returnType, String resultSymbol) {
+        if (localFrame) {
+            if (resultSymbol != null && isReference(returnType)) {
+                final String cType = TypeHelper.getCType(element.getTypes(), returnType);
+                out.append("    return (").append(cType).append(") (*env)->PopLocalFrame(env, ").append(resultSymbol).append(");\n");
+                return;
+            }
+            out.append("    (*env)->PopLocalFrame(env, NULL);\n");
+        } else if (createsLocalClassRef(element, scoped)) {
+            generateDeleteLocalRef(out, classSymbol, "    ");
             out.append('\n');
-            out.append("    ");
-            generateMethodAssignment(out, instanceSymbol, method, moduleNamespace);
-        } else {
-            generateClassLookup(out, classSymbol, true, ctor.getClazz(), "    ");
+        }
+        if (resultSymbol != null) {
+            out.append("    return ").append(resultSymbol).append(";\n");
+        }
+    }
+
+    public static void generateDeleteLocalRef(StringBuilder out, String symbol, String indention) {
+        out.append(indention).append("(*env)->DeleteLocalRef(env, ").append(symbol).append(");");
+    }
+
+    /**
+     * Generates the local variables holding the class (if needed) and the method or field ID of the given element,
+     * taking them from wherever the element's {@link CacheMode} keeps them.
+     */
+    public static void generateLookups(StringBuilder out, WrappedElement element, boolean needsClass, String classSymbol, String idSymbol, String moduleNamespace, boolean scoped) {
+        final String indention = "    ";
+        final String idType = ModuleLifecycle.cacheType(element);
+        final AccessedClass clazz = element.getHostClass();
+        if (scoped) {
+            if (needsClass) {
+                out.append(indention);
+                generateAssignment(out, "jclass", classSymbol, (it) -> {
+                    it.append(ModuleLifecycle.generateScopedClassExpression(moduleNamespace, element));
+                });
+                out.append('\n');
+            }
+            out.append(indention);
+            generateAssignment(out, idType, idSymbol, (it) -> {
+                it.append(ModuleLifecycle.generateScopedExpression(moduleNamespace, element));
+            });
             out.append('\n');
-            generateMethodLookup(wrapper.getTypes(), out, instanceSymbol, true, classSymbol, method, "    ");
+            return;
+        }
+
+        switch (element.getCacheMode()) {
+            case EAGER_PERSISTENT:
+                if (needsClass) {
+                    out.append(indention);
+                    generateClassAssignment(out, classSymbol, clazz, moduleNamespace);
+                    out.append('\n');
+                }
+                out.append(indention);
+                if (element instanceof MethodBackedWrapper) {
+                    generateMethodAssignment(out, idSymbol, ((MethodBackedWrapper) element).getMethod(), moduleNamespace);
+                } else {
+                    generateFieldAssignment(out, idSymbol, ((FieldWrapper) element).getField(), moduleNamespace);
+                }
+                break;
+            case LAZY_PERSISTENT:
+                if (needsClass) {
+                    out.append(indention);
+                    generateLazyClassAssignment(out, classSymbol, clazz, moduleNamespace);
+                    out.append('\n');
+                }
+                out.append(indention);
+                generateLazyAssignment(out, idType, idSymbol, element, moduleNamespace);
+                break;
+            default:
+                generateClassLookup(out, classSymbol, true, clazz, indention);
+                out.append('\n');
+                if (element instanceof MethodBackedWrapper) {
+                    generateMethodLookup(element.getTypes(), out, idSymbol, true, classSymbol, ((MethodBackedWrapper) element).getMethod(), indention);
+                } else {
+                    generateFieldLookup(element.getTypes(), out, idSymbol, true, classSymbol, ((FieldWrapper) element).getField(), indention);
+                }
         }
         out.append('\n');
-        use.accept(classSymbol, instanceSymbol);
-        out.append("}\n");
+    }
+
+    public static String scopeTypeName(String moduleNamespace) {
+        return moduleNamespace + "Scope";
     }
 
     public static void generateNewGlobalRef(StringBuilder out, String fromSymbol, String toSymbol, String castToType, String indention) {
@@ -296,17 +555,6 @@ public abstract class GeneratorHelper {
         out.append(indention).append(type).append(' ').append(symbol).append(";");
     }
 
-    public static int findIndexInParent(Element element) {
-        int i = 0;
-        for (Element enclosedElement : element.getEnclosingElement().getEnclosedElements()) {
-            if (enclosedElement == element) {
-                return i;
-            }
-            i++;
-        }
-        throw new RuntimeException("Could not find the element in its enclosing element: " + element);
-    }
-
     private static void generateAssignment(StringBuilder out, String type, String symbol, Consumer<StringBuilder> expression) {
         out.append(type).append(" ").append(symbol).append(" = ");
         expression.accept(out);
@@ -330,4 +578,16 @@ public abstract class GeneratorHelper {
             it.append(ModuleLifecycle.generateFieldCacheSymbol(moduleNamespace, field));
         });
     }
+
+    public static void generateLazyClassAssignment(StringBuilder out, String symbol, AccessedClass clazz, String moduleNamespace)  {
+        generateAssignment(out, "jclass", symbol, (it) -> {
+            it.append(ModuleLifecycle.generateLazyClassResolverName(moduleNamespace, clazz)).append("(env)");
+        });
+    }
+
+    public static void generateLazyAssignment(StringBuilder out, String type, String symbol, WrappedElement element, String moduleNamespace)  {
+        generateAssignment(out, type, symbol, (it) -> {
+            it.append(ModuleLifecycle.generateLazyResolverName(moduleNamespace, element)).append("(env)");
+        });
+    }
 }
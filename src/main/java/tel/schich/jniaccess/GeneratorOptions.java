@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+/**
+ * Module wide settings derived from the processor options that influence how the wrappers are generated.
+ */
+public class GeneratorOptions {
+    private final boolean localFrames;
+    private final boolean jniLifecycle;
+    private final Statistics statistics;
+    private final boolean outputUnits;
+
+    public GeneratorOptions(boolean localFrames, boolean jniLifecycle, Statistics statistics, boolean outputUnits) {
+        this.localFrames = localFrames;
+        this.jniLifecycle = jniLifecycle;
+        this.statistics = statistics;
+        this.outputUnits = outputUnits;
+    }
+
+    public boolean isLocalFrames() {
+        return localFrames;
+    }
+
+    /**
+     * Whether JNI_OnLoad/JNI_OnUnload, the cached JavaVM and the env-less wrapper variants are generated.
+     */
+    public boolean isJniLifecycle() {
+        return jniLifecycle;
+    }
+
+    /**
+     * The statistics collector of the module, or null if wrappers are not instrumented.
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Whether the wrappers are generated into translation units of their own, apart from the module file holding the
+     * caches, see {@link OutputUnits}.
+     */
+    public boolean isOutputUnits() {
+        return outputUnits;
+    }
+}
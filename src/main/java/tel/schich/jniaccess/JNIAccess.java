@@ -31,7 +31,25 @@ import java.lang.annotation.Target;
  * Documents constructors, methods and fields that are being accessed from native code.
  */
 @Target({ElementType.CONSTRUCTOR, ElementType.METHOD, ElementType.FIELD})
-@Retention(RetentionPolicy.SOURCE)
+@Retention(RetentionPolicy.CLASS)
 public @interface JNIAccess {
     CacheMode cacheMode() default CacheMode.DEFAULT;
+
+    /**
+     * Only applicable to primitive array fields and methods returning primitive arrays.
+     */
+    ArrayAccess arrayAccess() default ArrayAccess.NONE;
+
+    /**
+     * Only applicable to instance methods.
+     */
+    DispatchMode dispatch() default DispatchMode.AUTOMATIC;
+
+    ExceptionMode exceptionMode() default ExceptionMode.DEFAULT;
+
+    /**
+     * Only applicable to static, non-private methods with primitive parameter and return types. The wrapper calls an
+     * upcall stub once the generated registrar has been called (JDK 22+), which must not throw.
+     */
+    boolean upcall() default false;
 }
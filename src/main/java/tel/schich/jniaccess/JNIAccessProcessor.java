@@ -26,6 +26,8 @@ import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 import javax.tools.FileObject;
@@ -33,9 +35,13 @@ import javax.tools.StandardLocation;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static java.lang.Boolean.parseBoolean;
 import static java.util.Arrays.asList;
@@ -46,18 +52,52 @@ import static tel.schich.jniaccess.NativeInterfaceGenerator.buildFullyQualifiedE
 public class JNIAccessProcessor extends AbstractProcessor {
 
     private static final String OPTION_GENERATE_JNI_HEADERS = "generate.jni.headers";
+    private static final String OPTION_GENERATE_JNI_REGISTER_NATIVES = "generate.jni.register.natives";
     private static final String OPTION_GENERATE_CACHE_MODE_DEFAULT = "generate.cache.mode.default";
     private static final String OPTION_GENERATE_MODULE_NAMESPACE = "generate.module.namespace";
+    private static final String OPTION_GENERATE_LOCAL_FRAMES = "generate.local.frames";
+    private static final String OPTION_GENERATE_JNI_LIFECYCLE = "generate.jni.lifecycle";
+    private static final String OPTION_GENERATE_EXCEPTION_STATUS = "generate.exception.status";
+    private static final String OPTION_GENERATE_STATS = "generate.stats";
+    private static final String OPTION_GENERATE_STATS_LATENCY = "generate.stats.latency";
+    private static final String OPTION_GENERATE_OUTPUT_UNITS = "generate.output.units";
+    private static final String OPTION_GENERATE_NATIVE_BACKEND = "generate.native.backend";
+    private static final String OPTION_GENERATE_FFM_CRITICAL = "generate.ffm.critical";
+    private static final String OPTION_GENERATE_NATIVE_IMAGE_CONFIG = "generate.native.image.config";
     private static final String OPTION_OUTPUT_LOCATION = "output.location";
 
+    private static final String JAVA_TO_C_FILE_NAME = "jni-java-to-c";
+    private static final String C_TO_JAVA_FILE_NAME = "jni-c-to-java";
+    private static final String FFM_JAVA_TO_C_FILE_NAME = "ffm-java-to-c";
+
+    /**
+     * Reported to Gradle, which reads the processor type of dynamic processors from the supported options.
+     */
+    private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+
     private static final Set<String> SUPPORTED_ANNOTATIONS = Collections.singleton(JNIAccess.class.getCanonicalName());
     private static final Set<String> SUPPORTED_OPTIONS = unmodifiableSet(new HashSet<>(asList(
             OPTION_GENERATE_JNI_HEADERS,
+            OPTION_GENERATE_JNI_REGISTER_NATIVES,
             OPTION_GENERATE_CACHE_MODE_DEFAULT,
             OPTION_GENERATE_MODULE_NAMESPACE,
+            OPTION_GENERATE_LOCAL_FRAMES,
+            OPTION_GENERATE_JNI_LIFECYCLE,
+            OPTION_GENERATE_EXCEPTION_STATUS,
+            OPTION_GENERATE_STATS,
+            OPTION_GENERATE_STATS_LATENCY,
+            OPTION_GENERATE_OUTPUT_UNITS,
+            OPTION_GENERATE_NATIVE_BACKEND,
+            OPTION_GENERATE_FFM_CRITICAL,
+            OPTION_GENERATE_NATIVE_IMAGE_CONFIG,
             OPTION_OUTPUT_LOCATION
     )));
 
+    private final Set<String> annotatedTypes = new LinkedHashSet<>();
+    private final Set<String> rootTypes = new LinkedHashSet<>();
+    private OutputManifest manifest;
+    private boolean nativeHeaderOutputAvailable = true;
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latestSupported();
@@ -70,20 +110,125 @@ public class JNIAccessProcessor extends AbstractProcessor {
 
     @Override
     public Set<String> getSupportedOptions() {
-        return SUPPORTED_OPTIONS;
+        if (shouldGenerateJniHeaders()) {
+            // the native method scan visits every root element, not only the annotated ones, which Gradle can't track
+            return SUPPORTED_OPTIONS;
+        }
+        Set<String> options = new HashSet<>(SUPPORTED_OPTIONS);
+        options.add(GRADLE_AGGREGATING);
+        return unmodifiableSet(options);
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        generateJavaToNativeInterface(roundEnv);
+        TypeHelper.resetCache(processingEnv.getTypeUtils());
+        final Set<? extends Element> annotatedElements = roundEnv.getElementsAnnotatedWith(JNIAccess.class);
+        for (Element element : annotatedElements) {
+            annotatedTypes.add(topLevelType(element).getQualifiedName().toString());
+        }
+        generateUpcallRegistrars(annotatedElements);
+        if (shouldGenerateJniHeaders()) {
+            for (Element element : roundEnv.getRootElements()) {
+                if (element instanceof TypeElement) {
+                    rootTypes.add(((TypeElement) element).getQualifiedName().toString());
+                }
+            }
+            if (getNativeBackend() == NativeBackend.FFM) {
+                // sources created in the final round would not be compiled anymore
+                generateForeignDowncallClasses(NativeInterfaceGenerator.searchNativeMethods(roundEnv.getRootElements()));
+            }
+        }
 
-        return generateNativeToJavaInterface(roundEnv);
+        if (roundEnv.processingOver()) {
+            final boolean nativesRegistrationGenerated = generateJavaToNativeInterface(resolveTypes(rootTypes));
+            final Set<Element> accessedElements = findAnnotatedElements(resolveTypes(annotatedTypes));
+            generateNativeToJavaInterface(accessedElements, nativesRegistrationGenerated);
+            generateNativeImageConfig(accessedElements);
+            writeManifest();
+        }
+        return !annotatedElements.isEmpty();
+    }
+
+    /**
+     * Elements must not be held across rounds, so the types are resolved again by name in the final round.
+     */
+    private List<TypeElement> resolveTypes(Set<String> names) {
+        final List<TypeElement> types = new ArrayList<>(names.size());
+        for (String name : names) {
+            final TypeElement type = processingEnv.getElementUtils().getTypeElement(name);
+            if (type != null) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    private static Set<Element> findAnnotatedElements(List<TypeElement> types) {
+        final Set<Element> annotatedElements = new LinkedHashSet<>();
+        for (TypeElement type : types) {
+            findAnnotatedElements(type, annotatedElements);
+        }
+        return annotatedElements;
+    }
+
+    private static void findAnnotatedElements(Element element, Set<Element> accumulator) {
+        if (element.getAnnotation(JNIAccess.class) != null) {
+            accumulator.add(element);
+        }
+        if (element instanceof TypeElement) {
+            for (Element enclosedElement : element.getEnclosedElements()) {
+                findAnnotatedElements(enclosedElement, accumulator);
+            }
+        }
     }
 
     private boolean shouldGenerateJniHeaders() {
         return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_JNI_HEADERS, "false"));
     }
 
+    private boolean shouldGenerateNativeRegistration() {
+        return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_JNI_REGISTER_NATIVES, "false"));
+    }
+
+    private boolean shouldGenerateLocalFrames() {
+        return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_LOCAL_FRAMES, "false"));
+    }
+
+    private boolean shouldGenerateExceptionStatus(Element element) {
+        switch (element.getAnnotation(JNIAccess.class).exceptionMode()) {
+            case NONE:
+                return false;
+            case STATUS:
+                return true;
+            default:
+                return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_EXCEPTION_STATUS, "false"));
+        }
+    }
+
+    private Statistics createStatistics() {
+        final boolean latency = parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_STATS_LATENCY, "false"));
+        if (latency || parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_STATS, "false"))) {
+            return new Statistics(latency);
+        }
+        return null;
+    }
+
+    private boolean shouldGenerateJniLifecycle() {
+        return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_JNI_LIFECYCLE, "false"));
+    }
+
+    private OutputUnits getOutputUnits() {
+        return OutputUnits.valueOf(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_OUTPUT_UNITS, OutputUnits.MODULE.name()));
+    }
+
+    private NativeBackend getNativeBackend() {
+        return NativeBackend.valueOf(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_NATIVE_BACKEND, NativeBackend.JNI.name()));
+    }
+
+    private boolean shouldGenerateCriticalDowncalls() {
+        return parseBoolean(processingEnv.getOptions().getOrDefault(OPTION_GENERATE_FFM_CRITICAL, "false"));
+    }
+
     private String getModuleNamespace() {
         return processingEnv.getOptions().getOrDefault(OPTION_GENERATE_MODULE_NAMESPACE, "module_");
     }
@@ -114,21 +259,35 @@ public class JNIAccessProcessor extends AbstractProcessor {
         return file;
     }
 
-    private void generateJavaToNativeInterface(RoundEnvironment roundEnv) {
+    /**
+     * @return true if a RegisterNatives function has been generated
+     */
+    private boolean generateJavaToNativeInterface(List<TypeElement> rootTypes) {
         if (!shouldGenerateJniHeaders()) {
-            return;
+            return false;
+        }
+        final List<NativeInterfaceGenerator.ClassWithNatives> nativeMethods;
+        if (getNativeBackend() == NativeBackend.FFM) {
+            nativeMethods = generateForeignPrototypes(NativeInterfaceGenerator.searchNativeMethods(rootTypes));
+        } else {
+            nativeMethods = NativeInterfaceGenerator.searchNativeMethods(rootTypes);
         }
-        List<NativeInterfaceGenerator.ClassWithNatives> nativeMethods = NativeInterfaceGenerator.searchNativeMethods(roundEnv);
 
         if (nativeMethods.isEmpty()) {
-            return;
+            return false;
         }
 
-        final String fileName = "jni-java-to-c";
+        final String fileName = JAVA_TO_C_FILE_NAME;
         final String headerGuard = "_JNI_JAVA_TO_C_INTERFACE";
+        final boolean registerNatives = shouldGenerateNativeRegistration();
+        final String moduleNamespace = getModuleNamespace();
 
         final CharSequence headerContent = generateHeader(headerGuard, out -> {
             ifCpp(out, o -> o.append("extern \"C\" {\n"));
+            if (registerNatives) {
+                generateNativeRegistrationSignature(out, moduleNamespace);
+                out.append(";\n");
+            }
             nativeMethods.forEach((clazz) -> {
 
                 out.append("\n/* Begin Class: ").append(buildFullyQualifiedElementName(clazz.getTheClass())).append(" */\n\n");
@@ -141,14 +300,10 @@ public class JNIAccessProcessor extends AbstractProcessor {
                 out.append('\n');
 
                 final List<ExecutableElement> methods = clazz.getMethods();
-                Map<Name, Boolean> overloadedLookup = new HashMap<>();
-                for (ExecutableElement method : methods) {
-                    final Name methodName = method.getSimpleName();
-                    overloadedLookup.put(methodName, overloadedLookup.containsKey(methodName));
-                }
+                final Map<Name, Boolean> overloadedLookup = findOverloadedMethods(methods);
 
                 for (ExecutableElement method : methods) {
-                    generateExternPrototype(out, method, overloadedLookup.getOrDefault(method.getSimpleName(), false));
+                    generateExternPrototype(out, method, overloadedLookup.getOrDefault(method.getSimpleName(), false), !registerNatives);
                     out.append('\n');
                     out.append('\n');
                 }
@@ -158,7 +313,251 @@ public class JNIAccessProcessor extends AbstractProcessor {
             ifCpp(out, o -> o.append("}\n"));
         });
 
-        writeNativeContent(headerContent, fileName + ".h");
+        final String generatedHeaderName = fileName + ".h";
+        final Element[] originatingElements = originatingTypes(nativeMethods.stream()
+                .map(NativeInterfaceGenerator.ClassWithNatives::getTheClass)
+                .collect(Collectors.toList()));
+        writeNativeContent(headerContent, generatedHeaderName, originatingElements);
+
+        if (registerNatives) {
+            StringBuilder implementationOutput = new StringBuilder();
+            implementationOutput.append("#include \"").append(generatedHeaderName).append("\"\n");
+            implementationOutput.append("\n");
+            generateNativeRegistration(implementationOutput, moduleNamespace, nativeMethods);
+            writeNativeContent(implementationOutput, fileName + ".c", originatingElements);
+        }
+        return registerNatives;
+    }
+
+    /**
+     * Writes the prototypes of the C functions bound by the downcall classes.
+     *
+     * @return the classes with the constants and the native methods left to JNI
+     */
+    private List<NativeInterfaceGenerator.ClassWithNatives> generateForeignPrototypes(List<NativeInterfaceGenerator.ClassWithNatives> classes) {
+        final Types types = processingEnv.getTypeUtils();
+        final boolean critical = shouldGenerateCriticalDowncalls();
+        final String moduleNamespace = getModuleNamespace();
+        final List<NativeInterfaceGenerator.ClassWithNatives> jniClasses = new ArrayList<>();
+        final List<Element> foreignClasses = new ArrayList<>();
+
+        final CharSequence headerContent = generateHeader("_FFM_JAVA_TO_C_INTERFACE", out -> {
+            ifCpp(out, o -> o.append("extern \"C\" {\n"));
+            for (NativeInterfaceGenerator.ClassWithNatives clazz : classes) {
+                final List<ExecutableElement> methods = clazz.getMethods();
+                final Map<Name, Boolean> overloadedLookup = findOverloadedMethods(methods);
+                final List<ExecutableElement> jniMethods = new ArrayList<>();
+                boolean first = true;
+                for (ExecutableElement method : methods) {
+                    if (!ForeignDowncalls.isSupported(types, method, critical)) {
+                        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "The parameters or the return type can't be passed to a downcall, falling back to JNI.", method);
+                        jniMethods.add(method);
+                        continue;
+                    }
+                    if (first) {
+                        out.append("\n/* Begin Class: ").append(buildFullyQualifiedElementName(clazz.getTheClass())).append(" */\n\n");
+                        foreignClasses.add(clazz.getTheClass());
+                        first = false;
+                    }
+                    final String name = buildForeignFunctionName(types, moduleNamespace, method, overloadedLookup.getOrDefault(method.getSimpleName(), false));
+                    ForeignDowncalls.generatePrototype(types, out, name, method.getReturnType(), getParams(method));
+                    out.append(";\n\n");
+                }
+                if (!first) {
+                    out.append("/* End Class: ").append(buildFullyQualifiedElementName(clazz.getTheClass())).append(" */\n\n");
+                }
+                if (!jniMethods.isEmpty() || !clazz.getConstants().isEmpty()) {
+                    jniClasses.add(new NativeInterfaceGenerator.ClassWithNatives(clazz.getTheClass(), jniMethods, clazz.getConstants()));
+                }
+            }
+            ifCpp(out, o -> o.append("}\n"));
+        });
+
+        if (!foreignClasses.isEmpty()) {
+            writeNativeContent(headerContent, FFM_JAVA_TO_C_FILE_NAME + ".h", originatingTypes(foreignClasses));
+        }
+        return jniClasses;
+    }
+
+    /**
+     * Generates a class next to each class with native methods, with a static method per native method calling
+     * its C function through a downcall handle.
+     */
+    private void generateForeignDowncallClasses(List<NativeInterfaceGenerator.ClassWithNatives> classes) {
+        final Types types = processingEnv.getTypeUtils();
+        final boolean critical = shouldGenerateCriticalDowncalls();
+        final String moduleNamespace = getModuleNamespace();
+        for (NativeInterfaceGenerator.ClassWithNatives clazz : classes) {
+            final TypeElement classElement = (TypeElement) clazz.getTheClass();
+            final Map<Name, Boolean> overloadedLookup = findOverloadedMethods(clazz.getMethods());
+            final List<ExecutableElement> methods = new ArrayList<>();
+            final List<String> functionNames = new ArrayList<>();
+            final List<String> handleNames = new ArrayList<>();
+            for (ExecutableElement method : clazz.getMethods()) {
+                if (!ForeignDowncalls.isSupported(types, method, critical)) {
+                    continue;
+                }
+                final boolean overloaded = overloadedLookup.getOrDefault(method.getSimpleName(), false);
+                methods.add(method);
+                functionNames.add(buildForeignFunctionName(types, moduleNamespace, method, overloaded));
+                handleNames.add(method.getSimpleName() + "Handle" + (overloaded ? String.valueOf(clazz.getMethods().indexOf(method)) : ""));
+            }
+            if (methods.isEmpty()) {
+                continue;
+            }
+
+            final String packageName = processingEnv.getElementUtils().getPackageOf(classElement).getQualifiedName().toString();
+            final String className = siblingClassName(classElement, packageName, ForeignDowncalls.CLASS_SUFFIX);
+            writeSource(packageName, className, ForeignDowncalls.generateClass(types, packageName, className, classElement.getQualifiedName().toString(), methods, functionNames, handleNames, critical), classElement);
+        }
+    }
+
+    /**
+     * Generates an upcall registrar next to each class with static methods marked for upcalls, listing them in the
+     * same order as the registration function of the class.
+     */
+    private void generateUpcallRegistrars(Set<? extends Element> annotatedElements) {
+        final Set<TypeElement> classes = new LinkedHashSet<>();
+        for (Element element : annotatedElements) {
+            if (element.getKind() == ElementKind.METHOD && element.getAnnotation(JNIAccess.class).upcall()) {
+                classes.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+        final String moduleNamespace = getModuleNamespace();
+        for (TypeElement classElement : classes) {
+            final List<ExecutableElement> methods = new ArrayList<>();
+            for (Element element : classElement.getEnclosedElements()) {
+                if (element.getKind() == ElementKind.METHOD && isUpcall((ExecutableElement) element)) {
+                    methods.add((ExecutableElement) element);
+                }
+            }
+            if (methods.isEmpty()) {
+                continue;
+            }
+            final String qualifiedName = classElement.getQualifiedName().toString();
+            final String packageName = processingEnv.getElementUtils().getPackageOf(classElement).getQualifiedName().toString();
+            final String className = siblingClassName(classElement, packageName, Upcalls.CLASS_SUFFIX);
+            final String registrationFunction = Upcalls.registrationFunctionName(moduleNamespace, qualifiedName.replace('.', '_'));
+            writeSource(packageName, className, Upcalls.generateRegistrar(processingEnv.getTypeUtils(), packageName, className, qualifiedName, registrationFunction, methods), classElement);
+        }
+    }
+
+    private static boolean isUpcall(ExecutableElement method) {
+        final JNIAccess annotation = method.getAnnotation(JNIAccess.class);
+        return annotation != null && annotation.upcall() && Upcalls.isSupported(method);
+    }
+
+    /**
+     * Nested classes are flattened into the name, so the generated class is a top level class in the same package.
+     */
+    private static String siblingClassName(TypeElement classElement, String packageName, String suffix) {
+        final String qualifiedName = classElement.getQualifiedName().toString();
+        return (packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1)).replace('.', '_') + suffix;
+    }
+
+    private void writeSource(String packageName, String className, CharSequence content, TypeElement hostClass) {
+        final String sourceName = packageName.isEmpty() ? className : packageName + "." + className;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(sourceName, topLevelType(hostClass)).openWriter()) {
+            writer.append(content);
+        } catch (IOException e) {
+            logError(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * The mangled JNI name without the Java_ prefix, which keeps overloads apart.
+     */
+    private static String buildForeignFunctionName(Types types, String moduleNamespace, ExecutableElement method, boolean overloaded) {
+        return moduleNamespace + buildMangledName(types, method, overloaded).substring("Java_".length());
+    }
+
+    /**
+     * Writes the native-image metadata into META-INF/native-image/&lt;group&gt;/&lt;artifact&gt;, given by the option,
+     * so it is packaged with the classes.
+     */
+    private void generateNativeImageConfig(Set<Element> accessedElements) {
+        final String path = processingEnv.getOptions().get(OPTION_GENERATE_NATIVE_IMAGE_CONFIG);
+        if (path == null || accessedElements.isEmpty()) {
+            return;
+        }
+        final Elements elements = processingEnv.getElementUtils();
+        final Types types = processingEnv.getTypeUtils();
+        final String directory = "META-INF/native-image/" + path + "/";
+        final Element[] originatingElements = originatingTypes(accessedElements);
+        writeClassOutput(NativeImageConfig.generateJniConfig(elements, types, accessedElements), directory + NativeImageConfig.JNI_CONFIG_FILE_NAME, originatingElements);
+        writeClassOutput(NativeImageConfig.generateReachabilityMetadata(elements, types, accessedElements), directory + NativeImageConfig.REACHABILITY_METADATA_FILE_NAME, originatingElements);
+    }
+
+    private void writeClassOutput(CharSequence content, String file, Element... originatingElements) {
+        try (Writer writer = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", file, originatingElements).openWriter()) {
+            writer.append(content);
+        } catch (IOException e) {
+            logError(e.getLocalizedMessage());
+        }
+    }
+
+    private static Map<Name, Boolean> findOverloadedMethods(List<ExecutableElement> methods) {
+        Map<Name, Boolean> overloadedLookup = new HashMap<>();
+        for (ExecutableElement method : methods) {
+            final Name methodName = method.getSimpleName();
+            overloadedLookup.put(methodName, overloadedLookup.containsKey(methodName));
+        }
+        return overloadedLookup;
+    }
+
+    private static void generateNativeRegistrationSignature(StringBuilder out, String moduleNamespace) {
+        out.append("jint ").append(moduleNamespace).append("RegisterNatives(JNIEnv* env)");
+    }
+
+    /**
+     * Generates a JNINativeMethod table per class and a function registering all of them at once,
+     * so the JVM doesn't have to resolve each native method by its exported symbol name.
+     */
+    private void generateNativeRegistration(StringBuilder out, String moduleNamespace, List<NativeInterfaceGenerator.ClassWithNatives> classes) {
+        final Types types = processingEnv.getTypeUtils();
+        final ElementIndex index = new ElementIndex();
+        final Map<NativeInterfaceGenerator.ClassWithNatives, String> tables = new LinkedHashMap<>();
+        for (NativeInterfaceGenerator.ClassWithNatives clazz : classes) {
+            final List<ExecutableElement> methods = clazz.getMethods();
+            if (methods.isEmpty()) {
+                continue;
+            }
+            final String tableName = ModuleLifecycle.generateCacheSymbol(moduleNamespace, "natives_", clazz.getTheClass());
+            final Map<Name, Boolean> overloadedLookup = findOverloadedMethods(methods);
+            out.append("static JNINativeMethod ").append(tableName).append("[] = {\n");
+            for (ExecutableElement method : methods) {
+                final boolean overloaded = overloadedLookup.getOrDefault(method.getSimpleName(), false);
+                out.append("    {\"").append(method.getSimpleName()).append("\", \"");
+                GeneratorHelper.generateJniMethodSignature(out, types, new AccessedMethod(method, getParams(method), index));
+                out.append("\", (void*) ").append(buildMangledName(types, method, overloaded)).append("},\n");
+            }
+            out.append("};\n\n");
+            tables.put(clazz, tableName);
+        }
+
+        generateNativeRegistrationSignature(out, moduleNamespace);
+        out.append(" {\n");
+        if (!tables.isEmpty()) {
+            out.append("    jclass class;\n");
+            out.append("    jint result;\n");
+        }
+        for (Map.Entry<NativeInterfaceGenerator.ClassWithNatives, String> e : tables.entrySet()) {
+            final String tableName = e.getValue();
+            final TypeElement classElement = (TypeElement) e.getKey().getTheClass();
+            out.append("\n");
+            out.append("    class = (*env)->FindClass(env, \"").append(TypeHelper.getClassTypeName(classElement)).append("\");\n");
+            out.append("    if (class == NULL) {\n");
+            out.append("        return JNI_ERR;\n");
+            out.append("    }\n");
+            out.append("    result = (*env)->RegisterNatives(env, class, ").append(tableName)
+                    .append(", sizeof(").append(tableName).append(") / sizeof(JNINativeMethod));\n");
+            out.append("    (*env)->DeleteLocalRef(env, class);\n");
+            out.append("    if (result != JNI_OK) {\n");
+            out.append("        return result;\n");
+            out.append("    }\n");
+        }
+        out.append("    return JNI_OK;\n");
+        out.append("}\n");
     }
 
     private void generateConstant(StringBuilder out, VariableElement constant) {
@@ -205,65 +604,74 @@ public class JNIAccessProcessor extends AbstractProcessor {
         }
     }
 
-    private void generateExternPrototype(StringBuilder out, ExecutableElement method, boolean overloaded) {
+    private void generateExternPrototype(StringBuilder out, ExecutableElement method, boolean overloaded, boolean exported) {
         Types types = processingEnv.getTypeUtils();
         final String name = buildMangledName(types, method, overloaded);
         final boolean instance = !method.getModifiers().contains(Modifier.STATIC);
 
         List<MethodParam> params = getParams(method);
 
-        GeneratorHelper.generateExternFunctionSignature(processingEnv.getTypeUtils(), out, name, method.getReturnType(), instance, params);
+        GeneratorHelper.generateExternFunctionSignature(processingEnv.getTypeUtils(), out, name, method.getReturnType(), instance, params, exported);
     }
 
     /**
      * See https://docs.oracle.com/javase/8/docs/technotes/guides/jni/spec/design.html#resolving_native_method_names
      */
     private static String buildMangledName(Types types, ExecutableElement method, boolean overloaded) {
-        final String qualifiedName = buildFullyQualifiedElementName(method);
+        final TypeElement classElement = (TypeElement) method.getEnclosingElement();
         StringBuilder mangled = new StringBuilder();
-        final String[] segments = qualifiedName.split("\\.");
-
-        mangled.append("Java");
-        for (String segment : segments) {
-            mangled.append('_');
-
-            for (int i = 0; i < segment.length(); ++i) {
-                char c = segment.charAt(i);
-                switch (c) {
-                    case '_':
-                        mangled.append("_1");
-                        break;
-                    case ';':
-                        mangled.append("_2");
-                        break;
-                    case '[':
-                        mangled.append("_3");
-                        break;
-                    default:
-                        if (Character.isLetterOrDigit(c)) {
-                            mangled.append(c);
-                        } else {
-                            mangled.append("_0");
-                            if ((int) c < 128) {
-                                mangled.append(String.format("%04X", (int) c));
-                            } else {
-                                mangled.append(String.format("%04x", (int) c));
-                            }
-                        }
-                }
-            }
-        }
+
+        mangled.append("Java_");
+        // the binary name, so nested classes are separated by '$'
+        appendMangled(mangled, TypeHelper.getClassTypeName(classElement));
+        mangled.append('_');
+        appendMangled(mangled, method.getSimpleName().toString());
         if (overloaded) {
+            final StringBuilder signature = new StringBuilder();
+            generateJniMethodParametersSignature(signature, types, getParams(method));
             mangled.append("__");
-            generateJniMethodParametersSignature(mangled, types, getParams(method));
+            appendMangled(mangled, signature.toString());
         }
         return mangled.toString();
     }
 
-    private boolean generateNativeToJavaInterface(RoundEnvironment roundEnv) {
+    private static void appendMangled(StringBuilder mangled, String name) {
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '/':
+                    mangled.append('_');
+                    break;
+                case '_':
+                    mangled.append("_1");
+                    break;
+                case ';':
+                    mangled.append("_2");
+                    break;
+                case '[':
+                    mangled.append("_3");
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        mangled.append(c);
+                    } else {
+                        mangled.append("_0");
+                        if ((int) c < 128) {
+                            mangled.append(String.format("%04X", (int) c));
+                        } else {
+                            mangled.append(String.format("%04x", (int) c));
+                        }
+                    }
+            }
+        }
+    }
+
+    private void generateNativeToJavaInterface(Set<Element> annotatedElements, boolean registerNatives) {
 
         final CacheMode defaultCacheMode = getDefaultCacheMode();
-        Set<? extends Element> annotatedElements = roundEnv.getElementsAnnotatedWith(JNIAccess.class);
+        final OutputUnits outputUnits = getOutputUnits();
+        final GeneratorOptions options = new GeneratorOptions(shouldGenerateLocalFrames(), shouldGenerateJniLifecycle(), createStatistics(), outputUnits != OutputUnits.MODULE);
+        final ElementIndex index = new ElementIndex();
         List<WrappedElement> wrappedElements = new ArrayList<>();
         for (Element annotatedElement : annotatedElements) {
             CacheMode cacheMode = annotatedElement.getAnnotation(JNIAccess.class).cacheMode();
@@ -272,47 +680,222 @@ public class JNIAccessProcessor extends AbstractProcessor {
             }
             switch (annotatedElement.getKind()) {
                 case CONSTRUCTOR:
-                    wrappedElements.add(processConstructor(annotatedElement, cacheMode));
+                    wrappedElements.add(processConstructor(annotatedElement, cacheMode, options, index));
                     break;
                 case METHOD:
-                    wrappedElements.add(processMethod(annotatedElement, cacheMode));
+                    wrappedElements.add(processMethod(annotatedElement, cacheMode, options, index));
                     break;
                 case FIELD:
-                    wrappedElements.add(processField(annotatedElement, cacheMode));
+                    wrappedElements.add(processField(annotatedElement, cacheMode, options, index));
                     break;
                 default:
             }
         }
 
         if (wrappedElements.isEmpty()) {
-            return false;
+            return;
         }
 
-        final String fileName = "jni-c-to-java";
+        final String fileName = C_TO_JAVA_FILE_NAME;
         final String headerGuard = "_JNI_C_TO_JAVA_INTERFACE";
         final String moduleNamespace = getModuleNamespace();
+        if (options.isOutputUnits()) {
+            generateNativeToJavaUnits(wrappedElements, outputUnits, options, moduleNamespace, registerNatives);
+            return;
+        }
 
         final CharSequence headerContent = generateHeader(headerGuard, headerOutput -> {
             ifCpp(headerOutput, o -> o.append("extern \"C\" {\n"));
-            ModuleLifecycle.generateModuleLifecycleHeaders(headerOutput, moduleNamespace);
+            ModuleLifecycle.generateModuleLifecycleHeaders(headerOutput, moduleNamespace, wrappedElements, options);
             for (WrappedElement e : wrappedElements) {
-                e.generateDeclarations(headerOutput);
+                e.generateDeclarations(headerOutput, moduleNamespace);
+            }
+            FieldStructs.generateDeclarations(headerOutput, wrappedElements);
+            Upcalls.generateDeclarations(headerOutput, moduleNamespace, wrappedElements);
+            DispatchTable.generateDeclarations(headerOutput, moduleNamespace, wrappedElements);
+            if (options.getStatistics() != null) {
+                options.getStatistics().generateDeclarations(headerOutput, moduleNamespace);
             }
             ifCpp(headerOutput, o -> o.append("}\n"));
         });
         final String generatedHeaderName = fileName + ".h";
-        writeNativeContent(headerContent, generatedHeaderName);
+        final Element[] originatingElements = originatingTypes(annotatedElements);
+        writeNativeContent(headerContent, generatedHeaderName, originatingElements);
 
+        final Statistics statistics = options.getStatistics();
         StringBuilder implementationOutput = new StringBuilder();
-        implementationOutput.append("#include \"").append(generatedHeaderName).append("\"\n");
-        implementationOutput.append("\n");
-        ModuleLifecycle.generateModuleLifecycleFunctions(implementationOutput, moduleNamespace, wrappedElements);
+        generateModuleIncludes(implementationOutput, generatedHeaderName, wrappedElements, options, registerNatives);
+        ModuleLifecycle.generateModuleLifecycleFunctions(implementationOutput, moduleNamespace, wrappedElements, false);
+        if (CStringResults.isRequired(wrappedElements)) {
+            CStringResults.generateCopyFunction(implementationOutput, moduleNamespace);
+        }
+        if (options.isJniLifecycle()) {
+            ModuleLifecycle.generateJniLifecycleFunctions(implementationOutput, moduleNamespace, registerNatives);
+        }
+        final StringBuilder wrapperOutput = new StringBuilder();
         for (WrappedElement e : wrappedElements) {
-            e.generateImplementations(implementationOutput, moduleNamespace);
+            e.generateImplementations(wrapperOutput, moduleNamespace);
+        }
+        FieldStructs.generateImplementations(wrapperOutput, moduleNamespace, wrappedElements);
+        if (statistics != null) {
+            statistics.generateTable(implementationOutput, moduleNamespace, false);
         }
-        writeNativeContent(implementationOutput, fileName + ".c");
+        implementationOutput.append(wrapperOutput);
+        Upcalls.generateImplementations(processingEnv.getTypeUtils(), implementationOutput, moduleNamespace, wrappedElements);
+        DispatchTable.generateImplementations(implementationOutput, moduleNamespace, wrappedElements);
+        writeNativeContent(implementationOutput, fileName + ".c", originatingElements);
+    }
 
-        return true;
+    private void generateModuleIncludes(StringBuilder out, String headerName, List<WrappedElement> wrappedElements, GeneratorOptions options, boolean registerNatives) {
+        final Statistics statistics = options.getStatistics();
+        if (statistics != null && statistics.isLatency()) {
+            out.append("#ifndef _POSIX_C_SOURCE\n");
+            out.append("#define _POSIX_C_SOURCE 200809L\n");
+            out.append("#endif\n");
+        }
+        out.append("#include \"").append(headerName).append("\"\n");
+        if (options.isJniLifecycle() && registerNatives) {
+            out.append("#include \"").append(JAVA_TO_C_FILE_NAME).append(".h\"\n");
+        }
+        if (ModuleLifecycle.requiresAtomics(wrappedElements) || Upcalls.isRequired(wrappedElements) || statistics != null) {
+            out.append("#include <stdatomic.h>\n");
+        }
+        if (options.isJniLifecycle()) {
+            out.append("#include <pthread.h>\n");
+        }
+        if (statistics != null) {
+            statistics.generateIncludes(out);
+        }
+        out.append("\n");
+    }
+
+    /**
+     * Generates a header and C file per unit containing the wrappers of its elements, a module header and C file
+     * containing the module lifecycle, the statistics table and the dispatch table, and an umbrella header including
+     * all headers. The module C file and the umbrella header are the only files that change with every element, as they
+     * hold the caches, the scope and the dispatch IDs.
+     */
+    private void generateNativeToJavaUnits(List<WrappedElement> wrappedElements, OutputUnits outputUnits, GeneratorOptions options, String moduleNamespace, boolean registerNatives) {
+        final Map<String, List<WrappedElement>> units = new TreeMap<>();
+        for (WrappedElement element : wrappedElements) {
+            units.computeIfAbsent(unitName(element, outputUnits), k -> new ArrayList<>()).add(element);
+        }
+
+        final String moduleHeaderName = C_TO_JAVA_FILE_NAME + "-module.h";
+        final Statistics statistics = options.getStatistics();
+        final List<String> unitHeaderNames = new ArrayList<>();
+        for (Map.Entry<String, List<WrappedElement>> unit : units.entrySet()) {
+            final List<WrappedElement> elements = unit.getValue();
+            final String unitFileName = C_TO_JAVA_FILE_NAME + "-" + unit.getKey();
+            final String unitHeaderName = unitFileName + ".h";
+            final Element[] originatingElements = originatingTypes(hostClassElements(elements));
+            unitHeaderNames.add(unitHeaderName);
+
+            final CharSequence headerContent = generateHeader("_JNI_C_TO_JAVA_" + unit.getKey().toUpperCase(Locale.ROOT), headerOutput -> {
+                headerOutput.append("#include \"").append(moduleHeaderName).append("\"\n\n");
+                ifCpp(headerOutput, o -> o.append("extern \"C\" {\n"));
+                for (WrappedElement e : elements) {
+                    e.generateDeclarations(headerOutput, moduleNamespace);
+                }
+                FieldStructs.generateDeclarations(headerOutput, elements);
+                Upcalls.generateDeclarations(headerOutput, moduleNamespace, elements);
+                ifCpp(headerOutput, o -> o.append("}\n"));
+            });
+            writeNativeContent(headerContent, unitHeaderName, originatingElements);
+
+            final StringBuilder implementationOutput = new StringBuilder();
+            if (statistics != null && statistics.isLatency()) {
+                implementationOutput.append("#ifndef _POSIX_C_SOURCE\n");
+                implementationOutput.append("#define _POSIX_C_SOURCE 200809L\n");
+                implementationOutput.append("#endif\n");
+            }
+            implementationOutput.append("#include \"").append(unitHeaderName).append("\"\n");
+            if (Upcalls.isRequired(elements) || statistics != null) {
+                implementationOutput.append("#include <stdatomic.h>\n");
+            }
+            if (statistics != null) {
+                statistics.generateIncludes(implementationOutput);
+            }
+            implementationOutput.append("\n");
+            ModuleLifecycle.generateExternDeclarations(implementationOutput, moduleNamespace, elements);
+            if (statistics != null) {
+                statistics.beginUnit(unit.getKey());
+            }
+            final StringBuilder wrapperOutput = new StringBuilder();
+            for (WrappedElement e : elements) {
+                e.generateImplementations(wrapperOutput, moduleNamespace);
+            }
+            FieldStructs.generateImplementations(wrapperOutput, moduleNamespace, elements);
+            if (statistics != null) {
+                statistics.generateUnitTable(implementationOutput, moduleNamespace);
+            }
+            if (CStringResults.isRequired(elements)) {
+                CStringResults.generateCopyFunction(implementationOutput, moduleNamespace);
+            }
+            implementationOutput.append(wrapperOutput);
+            Upcalls.generateImplementations(processingEnv.getTypeUtils(), implementationOutput, moduleNamespace, elements);
+            writeNativeContent(implementationOutput, unitFileName + ".c", originatingElements);
+        }
+
+        final Element[] originatingElements = originatingTypes(hostClassElements(wrappedElements));
+        final CharSequence moduleHeaderContent = generateHeader("_JNI_C_TO_JAVA_MODULE", headerOutput -> {
+            ifCpp(headerOutput, o -> o.append("extern \"C\" {\n"));
+            ModuleLifecycle.generateModuleLifecycleHeaders(headerOutput, moduleNamespace, wrappedElements, options);
+            if (statistics != null) {
+                statistics.generateDeclarations(headerOutput, moduleNamespace);
+            }
+            ifCpp(headerOutput, o -> o.append("}\n"));
+        });
+        writeNativeContent(moduleHeaderContent, moduleHeaderName, originatingElements);
+
+        // the members of the scope and the dispatch IDs change with the elements of any unit, so only the umbrella
+        // header, which the units do not include, declares them
+        final String umbrellaHeaderName = C_TO_JAVA_FILE_NAME + ".h";
+        final CharSequence umbrellaHeaderContent = generateHeader("_JNI_C_TO_JAVA_INTERFACE", headerOutput -> {
+            headerOutput.append("#include \"").append(moduleHeaderName).append("\"\n");
+            for (String unitHeaderName : unitHeaderNames) {
+                headerOutput.append("#include \"").append(unitHeaderName).append("\"\n");
+            }
+            headerOutput.append("\n");
+            ifCpp(headerOutput, o -> o.append("extern \"C\" {\n"));
+            ModuleLifecycle.generateScopeDeclarations(headerOutput, moduleNamespace, wrappedElements, true);
+            DispatchTable.generateDeclarations(headerOutput, moduleNamespace, wrappedElements);
+            ifCpp(headerOutput, o -> o.append("}\n"));
+        });
+        writeNativeContent(umbrellaHeaderContent, umbrellaHeaderName, originatingElements);
+
+        final StringBuilder implementationOutput = new StringBuilder();
+        generateModuleIncludes(implementationOutput, umbrellaHeaderName, wrappedElements, options, registerNatives);
+        ModuleLifecycle.generateModuleLifecycleFunctions(implementationOutput, moduleNamespace, wrappedElements, true);
+        if (options.isJniLifecycle()) {
+            ModuleLifecycle.generateJniLifecycleFunctions(implementationOutput, moduleNamespace, registerNatives);
+        }
+        if (statistics != null) {
+            // the units have been generated already, so the table is complete
+            statistics.generateTable(implementationOutput, moduleNamespace, true);
+        }
+        DispatchTable.generateImplementations(implementationOutput, moduleNamespace, wrappedElements);
+        writeNativeContent(implementationOutput, C_TO_JAVA_FILE_NAME + ".c", originatingElements);
+    }
+
+    private String unitName(WrappedElement element, OutputUnits outputUnits) {
+        final TypeElement hostClass = element.getHostClass().getElement();
+        final String name;
+        if (outputUnits == OutputUnits.PACKAGE) {
+            final String packageName = processingEnv.getElementUtils().getPackageOf(hostClass).getQualifiedName().toString();
+            name = packageName.isEmpty() ? "unnamed" : packageName;
+        } else {
+            name = element.getHostClass().getQualifiedName();
+        }
+        return name.replace('.', '_');
+    }
+
+    private static List<Element> hostClassElements(List<WrappedElement> wrappedElements) {
+        final List<Element> elements = new ArrayList<>();
+        for (WrappedElement element : wrappedElements) {
+            elements.add(element.getHostClass().getElement());
+        }
+        return elements;
     }
 
     private static CharSequence generateHeader(String headerGuard, Consumer<StringBuilder> builder) {
@@ -333,69 +916,189 @@ public class JNIAccessProcessor extends AbstractProcessor {
         out.append("#endif\n");
     }
 
-    private Writer openFile(String file) throws IOException {
-        FileObject resource = null;
-        try {
-            resource = processingEnv.getFiler().createResource(StandardLocation.NATIVE_HEADER_OUTPUT, "", file);
-        } catch (NullPointerException ignored) {
+    /**
+     * Maps elements to their distinct top level types, which is the granularity incremental builds track sources at.
+     */
+    private static Element[] originatingTypes(Collection<? extends Element> elements) {
+        final Set<Element> types = new LinkedHashSet<>();
+        for (Element element : elements) {
+            types.add(topLevelType(element));
         }
+        return types.toArray(new Element[0]);
+    }
 
-        if (resource != null) {
-            return resource.openWriter();
+    private static TypeElement topLevelType(Element element) {
+        Element type = element;
+        while (type.getEnclosingElement() != null && type.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            type = type.getEnclosingElement();
         }
+        return (TypeElement) type;
+    }
 
-        File outputLocation = getOutputLocation();
-        if (outputLocation != null) {
-            return new FileWriter(new File(outputLocation, file), false);
+    /**
+     * Loads the manifest of the previous run from the native header output.
+     *
+     * @return the manifest, or null if there is no native header output
+     */
+    private OutputManifest getManifest() {
+        if (manifest == null) {
+            if (!nativeHeaderOutputAvailable) {
+                return null;
+            }
+            final FileObject resource = getNativeHeaderResource(OutputManifest.FILE_NAME);
+            if (resource == null) {
+                nativeHeaderOutputAvailable = false;
+                return null;
+            }
+            manifest = new OutputManifest();
+            try (InputStream in = resource.openInputStream()) {
+                manifest.load(in);
+            } catch (IOException ignored) {
+                // no manifest yet, everything will be written
+            }
         }
+        return manifest;
+    }
 
-        return null;
+    /**
+     * javac reports a native header output that has not been configured with -h by throwing from within its Filer,
+     * a NullPointerException in current versions, so any failure is taken as the absence of the location.
+     *
+     * @return the resource, or null if there is no native header output
+     */
+    private FileObject getNativeHeaderResource(String file) {
+        try {
+            return processingEnv.getFiler().getResource(StandardLocation.NATIVE_HEADER_OUTPUT, "", file);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
     }
 
-    private void writeNativeContent(CharSequence out, String file) {
-        try (Writer writer = openFile(file)) {
-            if (writer == null) {
+    private boolean nativeHeaderOutputExists(String file) {
+        final FileObject resource = getNativeHeaderResource(file);
+        if (resource == null) {
+            return false;
+        }
+        try {
+            resource.openInputStream().close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void writeManifest() {
+        if (manifest == null || !manifest.isModified()) {
+            return;
+        }
+        try (Writer writer = processingEnv.getFiler().createResource(StandardLocation.NATIVE_HEADER_OUTPUT, "", OutputManifest.FILE_NAME).openWriter()) {
+            manifest.store(writer);
+        } catch (IOException e) {
+            logError(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Writes the content unless the file already has the same content, in which case it is left untouched. Files in
+     * the native header output are compared with the manifest, files in the output location with their content.
+     */
+    private void writeNativeContent(CharSequence out, String file, Element... originatingElements) {
+        final String content = out.toString();
+        final String hash = OutputManifest.hash(content);
+        try {
+            final OutputManifest manifest = getManifest();
+            if (manifest != null) {
+                if (!manifest.isUnchanged(file, hash) || !nativeHeaderOutputExists(file)) {
+                    try (Writer writer = processingEnv.getFiler().createResource(StandardLocation.NATIVE_HEADER_OUTPUT, "", file, originatingElements).openWriter()) {
+                        writer.write(content);
+                    }
+                }
+                manifest.record(file, hash);
+                return;
+            }
+
+            final File outputLocation = getOutputLocation();
+            if (outputLocation == null) {
                 logError("No output location available! You can use the 'output.location' argument to set one or use the -h option of javac (1.8+).");
                 return;
             }
-            writer.write(out.toString());
+            final File target = new File(outputLocation, file);
+            if (target.isFile() && hash.equals(OutputManifest.hash(new String(Files.readAllBytes(target.toPath()), Charset.defaultCharset())))) {
+                return;
+            }
+            try (Writer writer = new FileWriter(target, false)) {
+                writer.write(content);
+            }
         } catch (IOException e) {
             logError(e.getLocalizedMessage());
         }
     }
 
-    private WrappedElement processConstructor(Element element, CacheMode cacheMode) {
+    private WrappedElement processConstructor(Element element, CacheMode cacheMode, GeneratorOptions options, ElementIndex index) {
         TypeElement clazz = (TypeElement) element.getEnclosingElement();
         ExecutableElement ctor = (ExecutableElement) element;
         Types typeUtils = processingEnv.getTypeUtils();
-        ConstructorCall call = new ConstructorCall(new AccessedClass(clazz, clazz.asType()), new AccessedMethod(ctor, getParams(ctor)));
+        ConstructorCall call = new ConstructorCall(new AccessedClass(clazz, clazz.asType(), index), new AccessedMethod(ctor, getParams(ctor), index));
 
         if (TypeHelper.isInstanceOf(typeUtils, clazz.asType(), Throwable.class)) {
-            return new ThrowWrapper(typeUtils, cacheMode, call);
+            return new ThrowWrapper(typeUtils, cacheMode, options, call);
         } else {
-            return new NewInstanceWrapper(typeUtils, cacheMode, call);
+            return new NewInstanceWrapper(typeUtils, cacheMode, options, call, shouldGenerateExceptionStatus(element));
         }
     }
 
-    private WrappedElement processMethod(Element element, CacheMode cacheMode) {
+    private WrappedElement processMethod(Element element, CacheMode cacheMode, GeneratorOptions options, ElementIndex index) {
         Types typeUtils = processingEnv.getTypeUtils();
         TypeElement clazz = (TypeElement) element.getEnclosingElement();
         ExecutableElement method = (ExecutableElement) element;
-        return new MethodCallWrapper(typeUtils, cacheMode, new AccessedClass(clazz, clazz.asType()), new AccessedMethod(method, getParams(method)));
+        final ArrayAccess arrayAccess = getArrayAccess(element, method.getReturnType());
+        final boolean nonvirtual = isNonvirtual(method, clazz);
+        if (element.getAnnotation(JNIAccess.class).upcall() && !Upcalls.isSupported(method)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "upcall requires a static, non-private method with primitive parameter and return types", element);
+        }
+        return new MethodCallWrapper(typeUtils, cacheMode, options, new AccessedClass(clazz, clazz.asType(), index), new AccessedMethod(method, getParams(method), index), arrayAccess, nonvirtual, shouldGenerateExceptionStatus(element), isUpcall(method));
     }
 
-    private WrappedElement processField(Element element, CacheMode cacheMode) {
+    private WrappedElement processField(Element element, CacheMode cacheMode, GeneratorOptions options, ElementIndex index) {
         Types typeUtils = processingEnv.getTypeUtils();
         TypeElement clazz = (TypeElement) element.getEnclosingElement();
         VariableElement field = (VariableElement) element;
-        return new FieldWrapper(typeUtils, cacheMode, new AccessedClass(clazz, clazz.asType()), new AccessedField(field, field.asType()));
+        final ArrayAccess arrayAccess = getArrayAccess(element, field.asType());
+        final AccessedField accessedField = new AccessedField(field, field.asType(), index);
+        // constants are never looked up, so there is nothing to cache
+        final CacheMode fieldCacheMode = FieldWrapper.isConstant(accessedField) ? CacheMode.NONE : cacheMode;
+        return new FieldWrapper(typeUtils, fieldCacheMode, options, new AccessedClass(clazz, clazz.asType(), index), accessedField, arrayAccess, shouldGenerateExceptionStatus(element));
+    }
+
+    private static boolean isNonvirtual(ExecutableElement method, TypeElement clazz) {
+        final Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.STATIC)) {
+            return false;
+        }
+        switch (method.getAnnotation(JNIAccess.class).dispatch()) {
+            case VIRTUAL:
+                return false;
+            case NONVIRTUAL:
+                return true;
+            default:
+                return modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || clazz.getModifiers().contains(Modifier.FINAL);
+        }
+    }
+
+    private ArrayAccess getArrayAccess(Element element, TypeMirror type) {
+        final ArrayAccess arrayAccess = element.getAnnotation(JNIAccess.class).arrayAccess();
+        if (arrayAccess != ArrayAccess.NONE && !ArrayAccessors.isPrimitiveArray(type)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "arrayAccess requires a primitive array type", element);
+            return ArrayAccess.NONE;
+        }
+        return arrayAccess;
     }
 
     private void logError(String s) {
         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, s);
     }
 
-    private static List<MethodParam> getParams(ExecutableElement element) {
+    static List<MethodParam> getParams(ExecutableElement element) {
         List<MethodParam> params = new ArrayList<>();
 
         for (VariableElement parameter : element.getParameters()) {
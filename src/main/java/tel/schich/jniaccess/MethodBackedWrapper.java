@@ -22,17 +22,22 @@
  */
 package tel.schich.jniaccess;
 
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 
+import java.util.Collections;
+
 import static tel.schich.jniaccess.GeneratorHelper.*;
 
 public abstract class MethodBackedWrapper extends WrappedElement {
 
     private final AccessedMethod method;
+    private final boolean exceptionStatus;
 
-    public MethodBackedWrapper(Types types, CacheMode cacheMode, AccessedMethod method) {
-        super(types, cacheMode);
+    public MethodBackedWrapper(Types types, CacheMode cacheMode, GeneratorOptions options, AccessedMethod method, boolean exceptionStatus) {
+        super(types, cacheMode, options);
         this.method = method;
+        this.exceptionStatus = exceptionStatus;
     }
 
     public AccessedMethod getMethod() {
@@ -41,31 +46,139 @@ public abstract class MethodBackedWrapper extends WrappedElement {
 
     protected abstract String generateFunctionName();
 
+    protected TypeMirror getReturnType() {
+        return method.getElement().getReturnType();
+    }
+
     protected void generateSig(StringBuilder out, boolean cStrings) {
-        generateFunctionSignature(getTypes(), out, method, generateFunctionName(), cStrings);
+        generateSig(out, cStrings, null);
+    }
+
+    protected void generateSig(StringBuilder out, boolean cStrings, String scopeType) {
+        generateSig(out, cStrings, scopeType, "");
+    }
+
+    protected void generateSig(StringBuilder out, boolean cStrings, String scopeType, String suffix) {
+        generateFunctionSignature(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams(), cStrings, scopeType, suffix);
+    }
+
+    /**
+     * Generates the body of the wrapper, following the signature generated by {@link #generateSig}.
+     */
+    protected abstract void generateImpl(StringBuilder out, String moduleNamespace, boolean scoped);
+
+    /**
+     * Whether a variant taking the arguments as a jvalue array is generated, which is also listed in the dispatch table.
+     */
+    public boolean hasJValueVariant() {
+        return false;
+    }
+
+    public String getJValueFunctionName() {
+        return generateFunctionName() + JVALUE_FUNCTION_SUFFIX;
     }
 
-    protected abstract void generateImpl(StringBuilder out, String moduleNamespace);
+    protected void generateJValueSig(StringBuilder out) {
+        generateJValueSig(out, "");
+    }
+
+    protected void generateJValueSig(StringBuilder out, String suffix) {
+        generateJValueFunctionSignature(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), suffix);
+    }
+
+    /**
+     * Generates the body of the jvalue variant, following the signature generated by {@link #generateJValueSig}.
+     */
+    protected void generateJValueImpl(StringBuilder out, String moduleNamespace) {
+    }
 
     @Override
-    public final void generateDeclarations(StringBuilder out) {
+    public final void generateDeclarations(StringBuilder out, String moduleNamespace) {
         generateSig(out, false);
         out.append(";\n");
+        if (exceptionStatus) {
+            StatusVariants.generateDeclaration(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams());
+        }
         if (hasStringParameter(getTypes(), method)) {
             generateSig(out, true);
             out.append(";\n");
         }
+        if (hasJValueVariant()) {
+            generateJValueSig(out);
+            out.append(";\n");
+        }
+        if (DirectBuffers.hasByteBufferParameter(getTypes(), method.getParams())) {
+            DirectBuffers.generateOverloadSignature(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams());
+            out.append(";\n");
+        }
+        if (getCacheMode().isTemporary()) {
+            generateSig(out, false, scopeTypeName(moduleNamespace));
+            out.append(";\n");
+        }
+        if (getOptions().isJniLifecycle()) {
+            generateEnvlessSig(out, false);
+            out.append(";\n");
+            if (hasStringParameter(getTypes(), method)) {
+                generateEnvlessSig(out, true);
+                out.append(";\n");
+            }
+        }
+        generateAdditionalDeclarations(out, moduleNamespace);
         out.append("\n");
     }
 
+    protected void generateAdditionalDeclarations(StringBuilder out, String moduleNamespace) {
+    }
+
+    protected void generateAdditionalImplementations(StringBuilder out, String moduleNamespace) {
+    }
+
+    protected boolean isInstance() {
+        return !method.isStatic() && !method.isConstructor();
+    }
+
+    private void generateEnvlessSig(StringBuilder out, boolean cStrings) {
+        generateEnvlessFunctionSignature(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams(), cStrings);
+    }
+
+    protected void generateEnvlessImplementations(StringBuilder out, String moduleNamespace) {
+        if (getOptions().isJniLifecycle()) {
+            generateEnvlessFunctionOverload(getTypes(), out, moduleNamespace, generateFunctionName(), getReturnType(), isInstance(), method.getParams(), false);
+            out.append("\n");
+            if (hasStringParameter(getTypes(), method)) {
+                generateEnvlessFunctionOverload(getTypes(), out, moduleNamespace, generateFunctionName(), getReturnType(), isInstance(), method.getParams(), true);
+                out.append("\n");
+            }
+        }
+    }
+
     protected void generateBaseImplementation(StringBuilder out, String moduleNamespace) {
-        generateImpl(out, moduleNamespace);
+        generateInstrumented(out, moduleNamespace, generateFunctionName(), getReturnType(), Statistics.arguments(null, isInstance(), method.getParams()),
+                (it, suffix) -> generateSig(it, false, null, suffix),
+                it -> generateImpl(it, moduleNamespace, false));
         out.append("\n");
+        if (exceptionStatus) {
+            StatusVariants.generateImplementation(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams());
+            out.append("\n");
+        }
+        if (getCacheMode().isTemporary()) {
+            generateInstrumented(out, moduleNamespace, generateFunctionName() + SCOPED_FUNCTION_SUFFIX, getReturnType(), Statistics.arguments(SCOPE_PARAMETER, isInstance(), method.getParams()),
+                    (it, suffix) -> generateSig(it, false, scopeTypeName(moduleNamespace), suffix),
+                    it -> generateImpl(it, moduleNamespace, true));
+            out.append("\n");
+        }
     }
 
-    protected void generateCStringImplementation(StringBuilder out) {
+    protected void generateCStringImplementation(StringBuilder out, String moduleNamespace) {
         if (hasStringParameter(getTypes(), method)) {
-            generateJStringFunctionOverload(getTypes(), out, generateFunctionName(), method);
+            generateJStringFunctionOverload(getTypes(), out, generateFunctionName(), isInstance(), getReturnType(), method.getParams());
+            out.append("\n");
+        }
+    }
+
+    protected void generateDirectBufferImplementation(StringBuilder out) {
+        if (DirectBuffers.hasByteBufferParameter(getTypes(), method.getParams())) {
+            DirectBuffers.generateOverload(getTypes(), out, generateFunctionName(), getReturnType(), isInstance(), method.getParams());
             out.append("\n");
         }
     }
@@ -73,7 +186,16 @@ public abstract class MethodBackedWrapper extends WrappedElement {
     @Override
     public void generateImplementations(StringBuilder out, String moduleNamespace) {
         generateBaseImplementation(out, moduleNamespace);
-        generateCStringImplementation(out);
+        if (hasJValueVariant()) {
+            generateInstrumented(out, moduleNamespace, getJValueFunctionName(), getReturnType(), Statistics.arguments(null, isInstance(), Collections.emptyList()) + ", " + JVALUE_PARAMETER,
+                    this::generateJValueSig,
+                    it -> generateJValueImpl(it, moduleNamespace));
+            out.append("\n");
+        }
+        generateCStringImplementation(out, moduleNamespace);
+        generateDirectBufferImplementation(out);
+        generateEnvlessImplementations(out, moduleNamespace);
+        generateAdditionalImplementations(out, moduleNamespace);
         out.append("\n");
     }
 }
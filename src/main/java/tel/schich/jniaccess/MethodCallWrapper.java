@@ -22,19 +22,27 @@
  */
 package tel.schich.jniaccess;
 
-import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 
-import java.util.Objects;
-
 import static tel.schich.jniaccess.GeneratorHelper.*;
 
 public class MethodCallWrapper extends MethodBackedWrapper {
     private final AccessedClass clazz;
+    private final ArrayAccess arrayAccess;
+    private final boolean nonvirtual;
+    private final boolean upcall;
 
-    public MethodCallWrapper(Types types, CacheMode cacheMode, AccessedClass clazz, AccessedMethod method) {
-        super(types, cacheMode, method);
+    public MethodCallWrapper(Types types, CacheMode cacheMode, GeneratorOptions options, AccessedClass clazz, AccessedMethod method, ArrayAccess arrayAccess, boolean nonvirtual, boolean exceptionStatus, boolean upcall) {
+        super(types, cacheMode, options, method, exceptionStatus);
         this.clazz = clazz;
+        this.arrayAccess = arrayAccess;
+        this.nonvirtual = nonvirtual;
+        this.upcall = upcall;
+    }
+
+    public boolean isUpcall() {
+        return upcall;
     }
 
     @Override
@@ -42,48 +50,109 @@ public class MethodCallWrapper extends MethodBackedWrapper {
         return clazz;
     }
 
+    @Override
+    public boolean hasStringResult() {
+        return TypeHelper.isString(getTypes(), getReturnType());
+    }
+
+    private String generateCStringResultFunctionName() {
+        return generateFunctionName() + C_STRING_FUNCTION_SUFFIX + CStringResults.RESULT_FUNCTION_SUFFIX;
+    }
+
     @Override
     protected String generateFunctionName() {
         return GeneratorHelper.functionName("call", clazz, getMethod().getName());
     }
 
     @Override
-    protected void generateImpl(StringBuilder out, String moduleNamespace) {
-        generateSig(out, false);
+    public boolean hasJValueVariant() {
+        return true;
+    }
+
+    @Override
+    protected void generateJValueImpl(StringBuilder out, String moduleNamespace) {
+        generateImplBody(out, moduleNamespace, false, true);
+    }
+
+    @Override
+    protected void generateImpl(StringBuilder out, String moduleNamespace, boolean scoped) {
+        generateImplBody(out, moduleNamespace, scoped, false);
+    }
+
+    private void generateImplBody(StringBuilder out, String moduleNamespace, boolean scoped, boolean jvalues) {
         out.append(" {\n");
+        if (upcall) {
+            Upcalls.generateCall(getTypes(), out, moduleNamespace, this, jvalues);
+        }
         final String classSymbol = "class";
         final AccessedMethod method = getMethod();
         final String methodSymbol = "method";
-        if (Objects.requireNonNull(getCacheMode()) == CacheMode.EAGER_PERSISTENT) {
+        final TypeMirror returnType = getReturnType();
+        final boolean localFrame = generateLocalFramePush(out, this, scoped, returnType, 0);
+        generateLookups(out, this, method.isStatic() || nonvirtual, classSymbol, methodSymbol, moduleNamespace, scoped);
+        generateReturningCall(out, this, scoped, localFrame, classSymbol, returnType, deconflictSymbol("result", method.getParams()), (it) -> {
+            it.append("(*env)->Call");
             if (method.isStatic()) {
-                out.append("    ");
-                GeneratorHelper.generateClassAssignment(out, classSymbol, getHostClass(), moduleNamespace);
-                out.append('\n');
+                it.append("Static");
+            } else if (nonvirtual) {
+                it.append("Nonvirtual");
             }
-            out.append("    ");
-            GeneratorHelper.generateMethodAssignment(out, methodSymbol, getMethod(), moduleNamespace);
-        } else {
-            generateClassLookup(out, classSymbol, true, clazz, "    ");
-            out.append('\n');
-            generateMethodLookup(getTypes(), out, methodSymbol, true, classSymbol, method, "    ");
+            it.append(TypeHelper.getJNIHelperType(returnType));
+            it.append("Method");
+            if (jvalues) {
+                it.append("A");
+            }
+            it.append("(env, ");
+            it.append(method.isStatic() ? classSymbol : "instance");
+            if (nonvirtual) {
+                it.append(", ").append(classSymbol);
+            }
+            it.append(", ").append(methodSymbol);
+            if (jvalues) {
+                it.append(", ").append(JVALUE_PARAMETER);
+            } else {
+                for (MethodParam param : method.getParams()) {
+                    it.append(", ").append(param.getName());
+                }
+            }
+            it.append(")");
+        });
+        out.append("}\n");
+    }
+
+    @Override
+    public void generateImplementations(StringBuilder out, String moduleNamespace) {
+        if (upcall) {
+            Upcalls.generateFunctionPointer(getTypes(), out, moduleNamespace, this);
         }
-        out.append("\n");
-        out.append("    ");
-        if (method.getElement().getReturnType().getKind() != TypeKind.VOID) {
-            out.append("return ");
+        super.generateImplementations(out, moduleNamespace);
+    }
+
+    @Override
+    protected void generateAdditionalDeclarations(StringBuilder out, String moduleNamespace) {
+        final AccessedMethod method = getMethod();
+        ArrayAccessors.generateDeclarations(getTypes(), out, arrayAccess, "call", clazz, method.getName(), !method.isStatic(), method.getParams(), getReturnType(), false);
+        if (TypeHelper.isByteBuffer(getTypes(), getReturnType())) {
+            DirectBuffers.generateAddressDeclaration(getTypes(), out, GeneratorHelper.functionName("call_address", clazz, method.getName()), !method.isStatic(), method.getParams());
         }
-        out.append("(*env)->Call");
-        if (method.isStatic()) {
-            out.append("Static");
+        if (hasStringResult()) {
+            CStringResults.generateDeclaration(getTypes(), out, generateCStringResultFunctionName(), !method.isStatic(), method.getParams(), hasStringParameter(getTypes(), method));
+        }
+    }
+
+    @Override
+    protected void generateAdditionalImplementations(StringBuilder out, String moduleNamespace) {
+        final AccessedMethod method = getMethod();
+        ArrayAccessors.generateImplementations(getTypes(), out, arrayAccess, "call", generateFunctionName(), clazz, method.getName(), !method.isStatic(), method.getParams(), getReturnType(), false);
+        if (TypeHelper.isByteBuffer(getTypes(), getReturnType())) {
+            DirectBuffers.generateAddressImplementation(getTypes(), out, GeneratorHelper.functionName("call_address", clazz, method.getName()), generateFunctionName(), !method.isStatic(), method.getParams());
+            out.append("\n");
         }
-        out.append(TypeHelper.getJNIHelperType(method.getElement().getReturnType()));
-        out.append("Method(env, ");
-        out.append(method.isStatic() ? classSymbol : "instance");
-        out.append(", ").append(methodSymbol);
-        for (MethodParam param : method.getParams()) {
-            out.append(", ").append(param.getName());
+        if (hasStringResult()) {
+            final boolean cStrings = hasStringParameter(getTypes(), method);
+            final String sourceName = cStrings ? generateFunctionName() + C_STRING_FUNCTION_SUFFIX : generateFunctionName();
+            CStringResults.generateImplementation(getTypes(), out, moduleNamespace, generateCStringResultFunctionName(), sourceName, !method.isStatic(), method.getParams(), cStrings);
+            out.append("\n");
         }
-        out.append(");\n");
-        out.append("}\n");
     }
 }
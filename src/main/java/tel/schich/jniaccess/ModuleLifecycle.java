@@ -24,10 +24,13 @@ package tel.schich.jniaccess;
 
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,20 +40,80 @@ public class ModuleLifecycle {
         out.append("void ").append(moduleNamespace).append(name).append("(JNIEnv* env)");
     }
 
-    static void generateModuleLifecycleHeaders(StringBuilder out, String moduleNamespace) {
+    private static void scopeFunctionSignature(StringBuilder out, String moduleNamespace, String returnType, String name) {
+        out.append(returnType).append(' ').append(moduleNamespace).append(name).append("(JNIEnv* env, ")
+                .append(GeneratorHelper.scopeTypeName(moduleNamespace)).append(" *").append(GeneratorHelper.SCOPE_PARAMETER).append(")");
+    }
+
+    private static void envFunctionSignature(StringBuilder out, String moduleNamespace) {
+        out.append("JNIEnv* ").append(generateEnvFunctionName(moduleNamespace)).append("(void)");
+    }
+
+    static String generateEnvFunctionName(String moduleNamespace) {
+        return moduleNamespace + "GetEnv";
+    }
+
+    static void generateModuleLifecycleHeaders(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements, GeneratorOptions options) {
         lifecycleFunctionSignature(out, moduleNamespace, "OnLoad");
         out.append(";\n");
         lifecycleFunctionSignature(out, moduleNamespace, "OnUnload");
         out.append(";\n");
+        if (options.isJniLifecycle()) {
+            envFunctionSignature(out, moduleNamespace);
+            out.append(";\n");
+        }
         out.append("\n");
+        EnumTables.generateDeclarations(out, EnumTables.findEnums(wrappedElements));
+
+        if (options.isOutputUnits()) {
+            // the units only pass the scope on, so its members stay out of the header they all include
+            if (!temporaryElements(wrappedElements).isEmpty()) {
+                final String scopeType = GeneratorHelper.scopeTypeName(moduleNamespace);
+                out.append("typedef struct ").append(scopeType).append(' ').append(scopeType).append(";\n\n");
+            }
+        } else {
+            generateScopeDeclarations(out, moduleNamespace, wrappedElements, false);
+        }
     }
 
-    static void generateModuleLifecycleFunctions(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements) {
+    /**
+     * @param forwardDeclared whether the typedef of the scope has been generated already
+     */
+    static void generateScopeDeclarations(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements, boolean forwardDeclared) {
+        final List<WrappedElement> temporaryElements = temporaryElements(wrappedElements);
+        if (!temporaryElements.isEmpty()) {
+            final String scopeType = GeneratorHelper.scopeTypeName(moduleNamespace);
+            out.append(forwardDeclared ? "struct " : "typedef struct ").append(scopeType).append(" {\n");
+            for (AccessedClass clazz : hostClasses(temporaryElements).values()) {
+                GeneratorHelper.generateDeclaration(out, "jclass", generateScopeClassMember(clazz), "    ");
+                out.append("\n");
+            }
+            for (WrappedElement element : temporaryElements) {
+                GeneratorHelper.generateDeclaration(out, cacheType(element), generateScopeMember(element), "    ");
+                out.append("\n");
+            }
+            out.append(forwardDeclared ? "};\n\n" : "} " + scopeType + ";\n\n");
+            scopeFunctionSignature(out, moduleNamespace, "jint", "ScopeBegin");
+            out.append(";\n");
+            scopeFunctionSignature(out, moduleNamespace, "void", "ScopeEnd");
+            out.append(";\n");
+            out.append("\n");
+        }
+    }
+
+    /**
+     * @param shared whether the wrappers are generated into other translation units, which then need external linkage
+     *               for the resolvers, see {@link #generateExternDeclarations}
+     */
+    static void generateModuleLifecycleFunctions(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements, boolean shared) {
         List<WrappedElement> eagerPersistentElements = new ArrayList<>();
+        List<WrappedElement> lazyPersistentElements = new ArrayList<>();
         for (WrappedElement wrappedElement : wrappedElements) {
             CacheMode cacheMode = wrappedElement.getCacheMode();
             if (cacheMode == CacheMode.EAGER_PERSISTENT) {
                 eagerPersistentElements.add(wrappedElement);
+            } else if (cacheMode == CacheMode.LAZY_PERSISTENT) {
+                lazyPersistentElements.add(wrappedElement);
             }
         }
 
@@ -68,10 +131,7 @@ public class ModuleLifecycle {
             }
             out.append("\n");
 
-            for (WrappedElement wrappedElement : wrappedElements) {
-                if (wrappedElement.getCacheMode() == CacheMode.NONE) {
-                    continue;
-                }
+            for (WrappedElement wrappedElement : eagerPersistentElements) {
                 if (wrappedElement instanceof MethodBackedWrapper) {
                     MethodBackedWrapper methodBackedWrapper = (MethodBackedWrapper) wrappedElement;
                     GeneratorHelper.generateDeclaration(out, "jmethodID", generateMethodCacheSymbol(moduleNamespace, methodBackedWrapper.getMethod()), "");
@@ -90,6 +150,17 @@ public class ModuleLifecycle {
             out.append("\n\n");
         }
 
+        Map<String, AccessedClass> lazyClasses = new LinkedHashMap<>();
+        for (WrappedElement element : lazyPersistentElements) {
+            final AccessedClass clazz = element.getHostClass();
+            lazyClasses.put(clazz.getTypeName(), clazz);
+        }
+        final String linkage = shared ? "" : "static ";
+        generateLazyResolvers(out, moduleNamespace, lazyClasses.values(), lazyPersistentElements, linkage);
+        generateScopeFunctions(out, moduleNamespace, temporaryElements(wrappedElements), shared);
+        final List<TypeElement> enums = EnumTables.findEnums(wrappedElements);
+        EnumTables.generateImplementations(out, moduleNamespace, enums);
+
         lifecycleFunctionSignature(out, moduleNamespace, "OnLoad");
         out.append(" {\n");
 
@@ -120,9 +191,24 @@ public class ModuleLifecycle {
                 }
             }
         }
+        EnumTables.generateLoad(out, moduleNamespace, enums);
         out.append("}\n\n");
         lifecycleFunctionSignature(out, moduleNamespace, "OnUnload");
         out.append(" {\n");
+        EnumTables.generateUnload(out, moduleNamespace, enums);
+
+        // lazily resolved IDs become invalid together with their class, so reset them before releasing the classes
+        for (WrappedElement element : lazyPersistentElements) {
+            out.append("    atomic_store_explicit(&").append(generateLazyCacheSymbol(moduleNamespace, element)).append(", NULL, memory_order_release);\n");
+        }
+        for (AccessedClass clazz : lazyClasses.values()) {
+            final String classSymbol = generateLazyClassCacheSymbol(moduleNamespace, clazz);
+            out.append("    jclass ").append(classSymbol).append("_ref = atomic_exchange_explicit(&").append(classSymbol).append(", NULL, memory_order_acq_rel);\n");
+            out.append("    if (").append(classSymbol).append("_ref != NULL) {\n");
+            GeneratorHelper.generateDeleteGlobalRef(out, classSymbol + "_ref", "        ");
+            out.append("\n");
+            out.append("    }\n");
+        }
 
         // delete the refs in reverse order
         Collections.reverse(globalRefs);
@@ -134,32 +220,488 @@ public class ModuleLifecycle {
         out.append("}\n\n");
     }
 
-    static String generateClassCacheSymbol(String moduleNamespace, AccessedClass clazz) {
-        return generateCacheSymbol(moduleNamespace, "cached_class_", clazz.getElement());
+    /**
+     * Generates JNI_OnLoad and JNI_OnUnload, which cache the JavaVM and drive the module lifecycle, and the <ns>GetEnv
+     * function that hands out the JNIEnv of the current thread. Threads unknown to the JVM are attached as daemons on
+     * first use and detached again when they exit. Only the env of threads attached this way is cached thread-locally,
+     * since the module controls their lifetime, other threads may be detached by their owner at any time.
+     * This relies on POSIX threads.
+     */
+    static void generateJniLifecycleFunctions(StringBuilder out, String moduleNamespace, boolean registerNatives) {
+        final String vmSymbol = moduleNamespace + "vm";
+        final String threadEnvSymbol = moduleNamespace + "thread_env";
+        final String detachKeySymbol = moduleNamespace + "detach_key";
+        final String detachKeyOnceSymbol = moduleNamespace + "detach_key_once";
+        final String detachFunction = moduleNamespace + "DetachThread";
+        final String createKeyFunction = moduleNamespace + "CreateDetachKey";
+        final String version = "JNI_VERSION_1_6";
+
+        out.append("static JavaVM* ").append(vmSymbol).append(" = NULL;\n");
+        out.append("static _Thread_local JNIEnv* ").append(threadEnvSymbol).append(" = NULL;\n");
+        out.append("static pthread_key_t ").append(detachKeySymbol).append(";\n");
+        out.append("static pthread_once_t ").append(detachKeyOnceSymbol).append(" = PTHREAD_ONCE_INIT;\n");
+        out.append("\n");
+
+        out.append("static void ").append(detachFunction).append("(void* env) {\n");
+        out.append("    (void) env;\n");
+        out.append("    ").append(threadEnvSymbol).append(" = NULL;\n");
+        out.append("    JavaVM* vm = ").append(vmSymbol).append(";\n");
+        out.append("    if (vm != NULL) {\n");
+        out.append("        (*vm)->DetachCurrentThread(vm);\n");
+        out.append("    }\n");
+        out.append("}\n\n");
+
+        out.append("static void ").append(createKeyFunction).append("(void) {\n");
+        out.append("    pthread_key_create(&").append(detachKeySymbol).append(", ").append(detachFunction).append(");\n");
+        out.append("}\n\n");
+
+        envFunctionSignature(out, moduleNamespace);
+        out.append(" {\n");
+        out.append("    JavaVM* vm = ").append(vmSymbol).append(";\n");
+        out.append("    if (vm == NULL) {\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    JNIEnv* env = ").append(threadEnvSymbol).append(";\n");
+        out.append("    if (env != NULL) {\n");
+        out.append("        return env;\n");
+        out.append("    }\n");
+        out.append("    jint status = (*vm)->GetEnv(vm, (void**) &env, ").append(version).append(");\n");
+        out.append("    if (status == JNI_OK) {\n");
+        out.append("        return env;\n");
+        out.append("    }\n");
+        out.append("    if (status != JNI_EDETACHED) {\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    if ((*vm)->AttachCurrentThreadAsDaemon(vm, (void**) &env, NULL) != JNI_OK) {\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    // the key's destructor detaches the thread once it exits and drops the cached env\n");
+        out.append("    pthread_once(&").append(detachKeyOnceSymbol).append(", ").append(createKeyFunction).append(");\n");
+        out.append("    pthread_setspecific(").append(detachKeySymbol).append(", env);\n");
+        out.append("    ").append(threadEnvSymbol).append(" = env;\n");
+        out.append("    return env;\n");
+        out.append("}\n\n");
+
+        out.append("JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {\n");
+        out.append("    (void) reserved;\n");
+        out.append("    JNIEnv* env;\n");
+        out.append("    if ((*vm)->GetEnv(vm, (void**) &env, ").append(version).append(") != JNI_OK) {\n");
+        out.append("        return JNI_ERR;\n");
+        out.append("    }\n");
+        out.append("    ").append(vmSymbol).append(" = vm;\n");
+        if (registerNatives) {
+            out.append("    if (").append(moduleNamespace).append("RegisterNatives(env) != JNI_OK) {\n");
+            out.append("        return JNI_ERR;\n");
+            out.append("    }\n");
+        }
+        out.append("    ").append(moduleNamespace).append("OnLoad(env);\n");
+        out.append("    return ").append(version).append(";\n");
+        out.append("}\n\n");
+
+        out.append("JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved) {\n");
+        out.append("    (void) reserved;\n");
+        out.append("    JNIEnv* env;\n");
+        out.append("    if ((*vm)->GetEnv(vm, (void**) &env, ").append(version).append(") == JNI_OK) {\n");
+        out.append("        ").append(moduleNamespace).append("OnUnload(env);\n");
+        out.append("    }\n");
+        // envs cached by other threads are not handed out anymore without the VM
+        out.append("    ").append(vmSymbol).append(" = NULL;\n");
+        out.append("    ").append(threadEnvSymbol).append(" = NULL;\n");
+        out.append("}\n\n");
     }
 
-    static String generateMethodCacheSymbol(String moduleNamespace, AccessedMethod method) {
-        String name;
-        if (method.isConstructor()) {
-            name = "ctor";
+    /**
+     * Generates the slots and resolver functions for {@link CacheMode#LAZY_PERSISTENT} elements.
+     * Classes are published using a compare-and-swap so that concurrent first calls can never leak a global ref,
+     * method and field IDs are stable for a given class, so racing threads simply store the same value.
+     */
+    private static void generateLazyResolvers(StringBuilder out, String moduleNamespace, Collection<AccessedClass> classes, List<WrappedElement> elements, String linkage) {
+        if (elements.isEmpty()) {
+            return;
+        }
+
+        for (AccessedClass clazz : classes) {
+            GeneratorHelper.generateDeclaration(out, "_Atomic(jclass)", generateLazyClassCacheSymbol(moduleNamespace, clazz), "");
+            out.append("\n");
+        }
+        for (WrappedElement element : elements) {
+            GeneratorHelper.generateDeclaration(out, "_Atomic(" + cacheType(element) + ")", generateLazyCacheSymbol(moduleNamespace, element), "");
+            out.append("\n");
+        }
+        out.append("\n");
+
+        for (AccessedClass clazz : classes) {
+            final String slot = generateLazyClassCacheSymbol(moduleNamespace, clazz);
+            lazyClassResolverSignature(out, moduleNamespace, clazz, linkage);
+            out.append(" {\n");
+            out.append("    jclass class = atomic_load_explicit(&").append(slot).append(", memory_order_acquire);\n");
+            out.append("    if (class == NULL) {\n");
+            GeneratorHelper.generateClassLookup(out, "local", true, clazz, "        ");
+            out.append("\n");
+            out.append("        if (local == NULL) {\n");
+            out.append("            return NULL;\n");
+            out.append("        }\n");
+            out.append("        jclass global = (jclass) (*env)->NewGlobalRef(env, local);\n");
+            out.append("        (*env)->DeleteLocalRef(env, local);\n");
+            out.append("        if (atomic_compare_exchange_strong_explicit(&").append(slot).append(", &class, global, memory_order_acq_rel, memory_order_acquire)) {\n");
+            out.append("            class = global;\n");
+            out.append("        } else {\n");
+            out.append("            // another thread won the race, class now holds its reference\n");
+            GeneratorHelper.generateDeleteGlobalRef(out, "global", "            ");
+            out.append("\n");
+            out.append("        }\n");
+            out.append("    }\n");
+            out.append("    return class;\n");
+            out.append("}\n\n");
+        }
+
+        for (WrappedElement element : elements) {
+            final String type = cacheType(element);
+            final String slot = generateLazyCacheSymbol(moduleNamespace, element);
+            final String symbol = "id";
+            lazyResolverSignature(out, moduleNamespace, element, linkage);
+            out.append(" {\n");
+            out.append("    ").append(type).append(' ').append(symbol).append(" = atomic_load_explicit(&").append(slot).append(", memory_order_acquire);\n");
+            out.append("    if (").append(symbol).append(" == NULL) {\n");
+            out.append("        jclass class = ").append(generateLazyClassResolverName(moduleNamespace, element.getHostClass())).append("(env);\n");
+            out.append("        if (class == NULL) {\n");
+            out.append("            return NULL;\n");
+            out.append("        }\n");
+            if (element instanceof MethodBackedWrapper) {
+                GeneratorHelper.generateMethodLookup(element.getTypes(), out, symbol, false, "class", ((MethodBackedWrapper) element).getMethod(), "        ");
+            } else {
+                GeneratorHelper.generateFieldLookup(element.getTypes(), out, symbol, false, "class", ((FieldWrapper) element).getField(), "        ");
+            }
+            out.append("\n");
+            out.append("        atomic_store_explicit(&").append(slot).append(", ").append(symbol).append(", memory_order_release);\n");
+            out.append("    }\n");
+            out.append("    return ").append(symbol).append(";\n");
+            out.append("}\n\n");
+        }
+    }
+
+    /**
+     * Generates the functions managing a {@link CacheMode#EAGER_TEMPORARY}/{@link CacheMode#LAZY_TEMPORARY} scope.
+     * A scope only holds local references, so it must not outlive the native frame it was started in.
+     *
+     * @param shared whether the wrappers are generated into other translation units, which do not know the members of
+     *               the scope and resolve even the eagerly looked up elements through functions
+     */
+    private static void generateScopeFunctions(StringBuilder out, String moduleNamespace, List<WrappedElement> elements, boolean shared) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        final String scope = GeneratorHelper.SCOPE_PARAMETER;
+        final String linkage = shared ? "" : "static ";
+        final Map<String, AccessedClass> classes = hostClasses(elements);
+        final List<WrappedElement> resolvedElements = new ArrayList<>();
+        for (WrappedElement element : elements) {
+            if (shared || element.getCacheMode() == CacheMode.LAZY_TEMPORARY) {
+                resolvedElements.add(element);
+            }
+        }
+
+        // eager elements find their class in the scope directly, unless their wrappers cannot see its members
+        for (AccessedClass clazz : hostClasses(resolvedElements).values()) {
+            final String member = scope + "->" + generateScopeClassMember(clazz);
+            scopeClassResolverSignature(out, moduleNamespace, clazz, linkage);
+            out.append(" {\n");
+            out.append("    if (").append(member).append(" == NULL) {\n");
+            GeneratorHelper.generateClassLookup(out, member, false, clazz, "        ");
+            out.append("\n");
+            out.append("    }\n");
+            out.append("    return ").append(member).append(";\n");
+            out.append("}\n\n");
+        }
+
+        for (WrappedElement element : resolvedElements) {
+            final String member = scope + "->" + generateScopeMember(element);
+            scopeResolverSignature(out, moduleNamespace, element, linkage);
+            out.append(" {\n");
+            out.append("    if (").append(member).append(" == NULL) {\n");
+            out.append("        jclass class = ").append(generateScopeClassResolverName(moduleNamespace, element.getHostClass())).append("(env, ").append(scope).append(");\n");
+            out.append("        if (class == NULL) {\n");
+            out.append("            return NULL;\n");
+            out.append("        }\n");
+            generateIdLookup(out, element, member, "class", "        ");
+            out.append("\n");
+            out.append("    }\n");
+            out.append("    return ").append(member).append(";\n");
+            out.append("}\n\n");
+        }
+
+        scopeFunctionSignature(out, moduleNamespace, "jint", "ScopeBegin");
+        out.append(" {\n");
+        final Map<String, List<WrappedElement>> elementsByClass = new HashMap<>();
+        for (WrappedElement element : elements) {
+            elementsByClass.computeIfAbsent(element.getHostClass().getTypeName(), k -> new ArrayList<>()).add(element);
+        }
+        // all classes are cleared first, so that a failed lookup can release the ones acquired so far using ScopeEnd
+        for (AccessedClass clazz : classes.values()) {
+            out.append("    ").append(scope).append("->").append(generateScopeClassMember(clazz)).append(" = NULL;\n");
+        }
+        for (AccessedClass clazz : classes.values()) {
+            final String classMember = scope + "->" + generateScopeClassMember(clazz);
+            final List<WrappedElement> classElements = elementsByClass.get(clazz.getTypeName());
+            boolean eager = false;
+            for (WrappedElement element : classElements) {
+                if (element.getCacheMode() == CacheMode.EAGER_TEMPORARY) {
+                    eager = true;
+                    break;
+                }
+            }
+            if (eager) {
+                GeneratorHelper.generateClassLookup(out, classMember, false, clazz, "    ");
+                out.append("\n");
+                generateScopeLookupCheck(out, moduleNamespace, classMember);
+            }
+            for (WrappedElement element : classElements) {
+                final String member = scope + "->" + generateScopeMember(element);
+                if (element.getCacheMode() == CacheMode.EAGER_TEMPORARY) {
+                    generateIdLookup(out, element, member, classMember, "    ");
+                    out.append("\n");
+                    generateScopeLookupCheck(out, moduleNamespace, member);
+                } else {
+                    out.append("    ").append(member).append(" = NULL;\n");
+                }
+            }
+        }
+        out.append("    return JNI_OK;\n");
+        out.append("}\n\n");
+
+        scopeFunctionSignature(out, moduleNamespace, "void", "ScopeEnd");
+        out.append(" {\n");
+        for (WrappedElement element : elements) {
+            out.append("    ").append(scope).append("->").append(generateScopeMember(element)).append(" = NULL;\n");
+        }
+        for (AccessedClass clazz : classes.values()) {
+            final String classMember = scope + "->" + generateScopeClassMember(clazz);
+            out.append("    if (").append(classMember).append(" != NULL) {\n");
+            out.append("        (*env)->DeleteLocalRef(env, ").append(classMember).append(");\n");
+            out.append("        ").append(classMember).append(" = NULL;\n");
+            out.append("    }\n");
+        }
+        out.append("}\n\n");
+    }
+
+    private static void generateScopeLookupCheck(StringBuilder out, String moduleNamespace, String member) {
+        out.append("    if (").append(member).append(" == NULL) {\n");
+        out.append("        ").append(moduleNamespace).append("ScopeEnd(env, ").append(GeneratorHelper.SCOPE_PARAMETER).append(");\n");
+        out.append("        return JNI_ERR;\n");
+        out.append("    }\n");
+    }
+
+    private static void lazyClassResolverSignature(StringBuilder out, String moduleNamespace, AccessedClass clazz, String linkage) {
+        out.append(linkage).append("jclass ").append(generateLazyClassResolverName(moduleNamespace, clazz)).append("(JNIEnv* env)");
+    }
+
+    private static void lazyResolverSignature(StringBuilder out, String moduleNamespace, WrappedElement element, String linkage) {
+        out.append(linkage).append(cacheType(element)).append(' ').append(generateLazyResolverName(moduleNamespace, element)).append("(JNIEnv* env)");
+    }
+
+    private static void scopeClassResolverSignature(StringBuilder out, String moduleNamespace, AccessedClass clazz, String linkage) {
+        out.append(linkage).append("jclass ").append(generateScopeClassResolverName(moduleNamespace, clazz)).append("(JNIEnv* env, ")
+                .append(GeneratorHelper.scopeTypeName(moduleNamespace)).append(" *").append(GeneratorHelper.SCOPE_PARAMETER).append(")");
+    }
+
+    private static void scopeResolverSignature(StringBuilder out, String moduleNamespace, WrappedElement element, String linkage) {
+        out.append(linkage).append(cacheType(element)).append(' ').append(generateScopeResolverName(moduleNamespace, element)).append("(JNIEnv* env, ")
+                .append(GeneratorHelper.scopeTypeName(moduleNamespace)).append(" *").append(GeneratorHelper.SCOPE_PARAMETER).append(")");
+    }
+
+    /**
+     * Generates the declarations of the caches and resolvers of the module file that the wrappers of the given elements
+     * use, for wrappers generated into their own translation unit.
+     */
+    static void generateExternDeclarations(StringBuilder out, String moduleNamespace, List<WrappedElement> wrappedElements) {
+        final Map<String, AccessedClass> eagerClasses = new LinkedHashMap<>();
+        final Map<String, AccessedClass> lazyClasses = new LinkedHashMap<>();
+        final Map<String, AccessedClass> scopeClasses = new LinkedHashMap<>();
+        for (WrappedElement element : wrappedElements) {
+            final AccessedClass clazz = element.getHostClass();
+            switch (element.getCacheMode()) {
+                case EAGER_PERSISTENT:
+                    eagerClasses.put(clazz.getTypeName(), clazz);
+                    break;
+                case LAZY_PERSISTENT:
+                    lazyClasses.put(clazz.getTypeName(), clazz);
+                    break;
+                case EAGER_TEMPORARY:
+                case LAZY_TEMPORARY:
+                    scopeClasses.put(clazz.getTypeName(), clazz);
+                    break;
+                default:
+            }
+        }
+        if (eagerClasses.isEmpty() && lazyClasses.isEmpty() && scopeClasses.isEmpty()) {
+            return;
+        }
+
+        for (AccessedClass clazz : eagerClasses.values()) {
+            GeneratorHelper.generateDeclaration(out, "extern jclass", generateClassCacheSymbol(moduleNamespace, clazz), "");
+            out.append("\n");
+        }
+        for (AccessedClass clazz : lazyClasses.values()) {
+            lazyClassResolverSignature(out, moduleNamespace, clazz, "");
+            out.append(";\n");
+        }
+        for (AccessedClass clazz : scopeClasses.values()) {
+            scopeClassResolverSignature(out, moduleNamespace, clazz, "");
+            out.append(";\n");
+        }
+        for (WrappedElement element : wrappedElements) {
+            switch (element.getCacheMode()) {
+                case EAGER_PERSISTENT:
+                    final String symbol;
+                    if (element instanceof MethodBackedWrapper) {
+                        symbol = generateMethodCacheSymbol(moduleNamespace, ((MethodBackedWrapper) element).getMethod());
+                    } else {
+                        symbol = generateFieldCacheSymbol(moduleNamespace, ((FieldWrapper) element).getField());
+                    }
+                    GeneratorHelper.generateDeclaration(out, "extern " + cacheType(element), symbol, "");
+                    out.append("\n");
+                    break;
+                case LAZY_PERSISTENT:
+                    lazyResolverSignature(out, moduleNamespace, element, "");
+                    out.append(";\n");
+                    break;
+                case EAGER_TEMPORARY:
+                case LAZY_TEMPORARY:
+                    scopeResolverSignature(out, moduleNamespace, element, "");
+                    out.append(";\n");
+                    break;
+                default:
+            }
+        }
+        out.append("\n");
+    }
+
+    private static void generateIdLookup(StringBuilder out, WrappedElement element, String symbol, String classSymbol, String indention) {
+        if (element instanceof MethodBackedWrapper) {
+            GeneratorHelper.generateMethodLookup(element.getTypes(), out, symbol, false, classSymbol, ((MethodBackedWrapper) element).getMethod(), indention);
+        } else if (element instanceof FieldWrapper) {
+            GeneratorHelper.generateFieldLookup(element.getTypes(), out, symbol, false, classSymbol, ((FieldWrapper) element).getField(), indention);
         } else {
-            name = method.getName();
+            throw new RuntimeException("Unsupported wrappedElement: " + element);
         }
+    }
+
+    private static List<WrappedElement> temporaryElements(List<WrappedElement> wrappedElements) {
+        List<WrappedElement> temporaryElements = new ArrayList<>();
+        for (WrappedElement element : wrappedElements) {
+            if (element.getCacheMode().isTemporary()) {
+                temporaryElements.add(element);
+            }
+        }
+        return temporaryElements;
+    }
 
-        final ExecutableElement methodElement = method.getElement();
-        final Element clazz = methodElement.getEnclosingElement();
-        final int i = GeneratorHelper.findIndexInParent(methodElement);
+    private static Map<String, AccessedClass> hostClasses(List<WrappedElement> wrappedElements) {
+        Map<String, AccessedClass> classes = new LinkedHashMap<>();
+        for (WrappedElement element : wrappedElements) {
+            final AccessedClass clazz = element.getHostClass();
+            classes.put(clazz.getTypeName(), clazz);
+        }
+        return classes;
+    }
 
-        return generateCacheSymbol(moduleNamespace, "cached_method_", clazz) + "__" + name + i;
+    static String generateScopedClassExpression(String moduleNamespace, WrappedElement element) {
+        if (element.getCacheMode() == CacheMode.EAGER_TEMPORARY && !element.getOptions().isOutputUnits()) {
+            return GeneratorHelper.SCOPE_PARAMETER + "->" + generateScopeClassMember(element.getHostClass());
+        }
+        return generateScopeClassResolverName(moduleNamespace, element.getHostClass()) + "(env, " + GeneratorHelper.SCOPE_PARAMETER + ")";
+    }
+
+    static String generateScopedExpression(String moduleNamespace, WrappedElement element) {
+        if (element.getCacheMode() == CacheMode.EAGER_TEMPORARY && !element.getOptions().isOutputUnits()) {
+            return GeneratorHelper.SCOPE_PARAMETER + "->" + generateScopeMember(element);
+        }
+        return generateScopeResolverName(moduleNamespace, element) + "(env, " + GeneratorHelper.SCOPE_PARAMETER + ")";
+    }
+
+    private static String generateScopeClassMember(AccessedClass clazz) {
+        return generateCacheSymbol("", "class_", clazz);
+    }
+
+    private static String generateScopeMember(WrappedElement element) {
+        return generateElementSymbol("", "method_", "field_", element);
+    }
+
+    private static String generateScopeClassResolverName(String moduleNamespace, AccessedClass clazz) {
+        return generateCacheSymbol(moduleNamespace, "scope_class_", clazz);
+    }
+
+    private static String generateScopeResolverName(String moduleNamespace, WrappedElement element) {
+        return generateElementSymbol(moduleNamespace, "scope_method_", "scope_field_", element);
+    }
+
+    private static String generateElementSymbol(String moduleNamespace, String methodPrefix, String fieldPrefix, WrappedElement element) {
+        if (element instanceof MethodBackedWrapper) {
+            return generateMethodCacheSymbol(moduleNamespace, methodPrefix, ((MethodBackedWrapper) element).getMethod());
+        } else if (element instanceof FieldWrapper) {
+            return generateFieldCacheSymbol(moduleNamespace, fieldPrefix, ((FieldWrapper) element).getField());
+        } else {
+            throw new RuntimeException("Unsupported wrappedElement: " + element);
+        }
+    }
+
+    static boolean requiresAtomics(List<WrappedElement> wrappedElements) {
+        for (WrappedElement element : wrappedElements) {
+            if (element.getCacheMode() == CacheMode.LAZY_PERSISTENT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String cacheType(WrappedElement element) {
+        if (element instanceof MethodBackedWrapper) {
+            return "jmethodID";
+        } else if (element instanceof FieldWrapper) {
+            return "jfieldID";
+        } else {
+            throw new RuntimeException("Unsupported wrappedElement: " + element);
+        }
+    }
+
+    private static String generateLazyCacheSymbol(String moduleNamespace, WrappedElement element) {
+        return generateElementSymbol(moduleNamespace, "lazy_method_", "lazy_field_", element);
+    }
+
+    static String generateLazyClassCacheSymbol(String moduleNamespace, AccessedClass clazz) {
+        return generateCacheSymbol(moduleNamespace, "lazy_class_", clazz);
+    }
+
+    static String generateLazyClassResolverName(String moduleNamespace, AccessedClass clazz) {
+        return generateCacheSymbol(moduleNamespace, "resolve_class_", clazz);
+    }
+
+    static String generateLazyResolverName(String moduleNamespace, WrappedElement element) {
+        return generateElementSymbol(moduleNamespace, "resolve_method_", "resolve_field_", element);
+    }
+
+    static String generateClassCacheSymbol(String moduleNamespace, AccessedClass clazz) {
+        return generateCacheSymbol(moduleNamespace, "cached_class_", clazz);
+    }
+
+    static String generateMethodCacheSymbol(String moduleNamespace, AccessedMethod method) {
+        return generateMethodCacheSymbol(moduleNamespace, "cached_method_", method);
+    }
+
+    private static String generateMethodCacheSymbol(String moduleNamespace, String prefix, AccessedMethod method) {
+        return moduleNamespace + prefix + method.getSymbolName();
     }
 
     static String generateFieldCacheSymbol(String moduleNamespace, AccessedField field) {
-        String name = field.getName();
-        final VariableElement varElement = field.getElement();
-        final Element clazz = varElement.getEnclosingElement();
-        final int i = GeneratorHelper.findIndexInParent(varElement);
+        return generateFieldCacheSymbol(moduleNamespace, "cached_field_", field);
+    }
+
+    private static String generateFieldCacheSymbol(String moduleNamespace, String prefix, AccessedField field) {
+        return moduleNamespace + prefix + field.getSymbolName();
+    }
 
-        return generateCacheSymbol(moduleNamespace, "cached_field_", clazz) + "__" + name + i;
+    private static String generateCacheSymbol(String moduleNamespace, String prefix, AccessedClass clazz) {
+        return moduleNamespace + prefix + clazz.getSymbolName();
     }
 
     static String generateCacheSymbol(String moduleNamespace, String prefix, Element element) {
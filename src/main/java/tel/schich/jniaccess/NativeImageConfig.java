@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates GraalVM native-image metadata registering the wrapped constructors, methods and fields for JNI access.
+ */
+public abstract class NativeImageConfig {
+    public static final String JNI_CONFIG_FILE_NAME = "jni-config.json";
+    public static final String REACHABILITY_METADATA_FILE_NAME = "reachability-metadata.json";
+
+    private NativeImageConfig() {
+    }
+
+    private static Map<TypeElement, List<Element>> membersByClass(Elements elements, Iterable<? extends Element> wrappedElements) {
+        final Map<TypeElement, List<Element>> classes = new LinkedHashMap<>();
+        final List<TypeMirror> usedTypes = new ArrayList<>();
+        for (Element element : wrappedElements) {
+            switch (element.getKind()) {
+                case CONSTRUCTOR:
+                case METHOD:
+                    final ExecutableElement method = (ExecutableElement) element;
+                    usedTypes.add(method.getReturnType());
+                    for (VariableElement parameter : method.getParameters()) {
+                        usedTypes.add(parameter.asType());
+                    }
+                    classes.computeIfAbsent((TypeElement) element.getEnclosingElement(), k -> new ArrayList<>()).add(element);
+                    break;
+                case FIELD:
+                    usedTypes.add(element.asType());
+                    classes.computeIfAbsent((TypeElement) element.getEnclosingElement(), k -> new ArrayList<>()).add(element);
+                    break;
+                default:
+            }
+        }
+        addEnumMembers(elements, classes, usedTypes);
+        return classes;
+    }
+
+    /**
+     * The enum tables look up the constants of the used enums and Enum.ordinal().
+     */
+    private static void addEnumMembers(Elements elements, Map<TypeElement, List<Element>> classes, List<TypeMirror> usedTypes) {
+        boolean enumsUsed = false;
+        for (TypeMirror type : usedTypes) {
+            final TypeElement enumElement = EnumTables.getEnumElement(type);
+            if (enumElement == null) {
+                continue;
+            }
+            final List<Element> constants = EnumTables.getConstants(enumElement);
+            if (constants.isEmpty()) {
+                continue;
+            }
+            enumsUsed = true;
+            final List<Element> members = classes.computeIfAbsent(enumElement, k -> new ArrayList<>());
+            for (Element constant : constants) {
+                if (!members.contains(constant)) {
+                    members.add(constant);
+                }
+            }
+        }
+        if (enumsUsed) {
+            final TypeElement enumClass = elements.getTypeElement(Enum.class.getName());
+            for (Element member : enumClass.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.METHOD && member.getSimpleName().contentEquals("ordinal")) {
+                    classes.computeIfAbsent(enumClass, k -> new ArrayList<>()).add(member);
+                }
+            }
+        }
+    }
+
+    /**
+     * Types are named like Class.getName() does, except for arrays, which use the source notation.
+     */
+    private static String getTypeName(Elements elements, Types types, TypeMirror type) {
+        switch (type.getKind()) {
+            case ARRAY:
+                return getTypeName(elements, types, ((ArrayType) type).getComponentType()) + "[]";
+            case DECLARED:
+            case TYPEVAR:
+                final TypeMirror erasure = types.erasure(type);
+                if (erasure instanceof DeclaredType) {
+                    return elements.getBinaryName((TypeElement) ((DeclaredType) erasure).asElement()).toString();
+                }
+                return erasure.toString();
+            default:
+                return type.toString();
+        }
+    }
+
+    private static void generateMembers(Elements elements, Types types, StringBuilder out, String indent, List<Element> members) {
+        final List<ExecutableElement> methods = new ArrayList<>();
+        final List<VariableElement> fields = new ArrayList<>();
+        for (Element member : members) {
+            if (member.getKind() == ElementKind.FIELD || member.getKind() == ElementKind.ENUM_CONSTANT) {
+                fields.add((VariableElement) member);
+            } else {
+                methods.add((ExecutableElement) member);
+            }
+        }
+        if (!methods.isEmpty()) {
+            out.append(",\n").append(indent).append("\"methods\": [\n");
+            for (int i = 0; i < methods.size(); i++) {
+                final ExecutableElement method = methods.get(i);
+                final String name = method.getKind() == ElementKind.CONSTRUCTOR ? "<init>" : method.getSimpleName().toString();
+                out.append(indent).append("  {\"name\": \"").append(name).append("\", \"parameterTypes\": [");
+                final List<? extends VariableElement> parameters = method.getParameters();
+                for (int j = 0; j < parameters.size(); j++) {
+                    if (j > 0) {
+                        out.append(", ");
+                    }
+                    out.append('"').append(getTypeName(elements, types, parameters.get(j).asType())).append('"');
+                }
+                out.append("]}").append(i + 1 < methods.size() ? ",\n" : "\n");
+            }
+            out.append(indent).append("]");
+        }
+        if (!fields.isEmpty()) {
+            out.append(",\n").append(indent).append("\"fields\": [\n");
+            for (int i = 0; i < fields.size(); i++) {
+                out.append(indent).append("  {\"name\": \"").append(fields.get(i).getSimpleName()).append("\"}");
+                out.append(i + 1 < fields.size() ? ",\n" : "\n");
+            }
+            out.append(indent).append("]");
+        }
+    }
+
+    /**
+     * The format read by GraalVM before 23, which is still supported.
+     */
+    public static CharSequence generateJniConfig(Elements elements, Types types, Iterable<? extends Element> wrappedElements) {
+        final StringBuilder out = new StringBuilder();
+        out.append("[\n");
+        final Map<TypeElement, List<Element>> classes = membersByClass(elements, wrappedElements);
+        int i = 0;
+        for (Map.Entry<TypeElement, List<Element>> e : classes.entrySet()) {
+            out.append("  {\n");
+            out.append("    \"name\": \"").append(elements.getBinaryName(e.getKey())).append('"');
+            generateMembers(elements, types, out, "    ", e.getValue());
+            out.append("\n  }").append(++i < classes.size() ? ",\n" : "\n");
+        }
+        out.append("]\n");
+        return out;
+    }
+
+    /**
+     * The format read by GraalVM 23 and later, where JNI access is a flag of the reflection entries.
+     */
+    public static CharSequence generateReachabilityMetadata(Elements elements, Types types, Iterable<? extends Element> wrappedElements) {
+        final StringBuilder out = new StringBuilder();
+        out.append("{\n");
+        out.append("  \"reflection\": [\n");
+        final Map<TypeElement, List<Element>> classes = membersByClass(elements, wrappedElements);
+        int i = 0;
+        for (Map.Entry<TypeElement, List<Element>> e : classes.entrySet()) {
+            out.append("    {\n");
+            out.append("      \"type\": \"").append(elements.getBinaryName(e.getKey())).append("\",\n");
+            out.append("      \"jniAccessible\": true");
+            generateMembers(elements, types, out, "      ", e.getValue());
+            out.append("\n    }").append(++i < classes.size() ? ",\n" : "\n");
+        }
+        out.append("  ]\n");
+        out.append("}\n");
+        return out;
+    }
+}
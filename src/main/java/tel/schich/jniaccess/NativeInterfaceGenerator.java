@@ -22,16 +22,15 @@
  */
 package tel.schich.jniaccess;
 
-import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 public class NativeInterfaceGenerator {
-    public static List<ClassWithNatives> searchNativeMethods(RoundEnvironment roundEnv) {
+    public static List<ClassWithNatives> searchNativeMethods(Iterable<? extends Element> rootElements) {
         final List<ClassWithNatives> methods = new ArrayList<>();
-        for (Element rootElement : roundEnv.getRootElements()) {
+        for (Element rootElement : rootElements) {
             methods.addAll(searchNativeMethods(rootElement));
         }
         return methods;
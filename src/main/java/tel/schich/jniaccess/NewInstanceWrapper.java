@@ -22,6 +22,7 @@
  */
 package tel.schich.jniaccess;
 
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 
 import static tel.schich.jniaccess.GeneratorHelper.*;
@@ -29,8 +30,8 @@ import static tel.schich.jniaccess.GeneratorHelper.*;
 public class NewInstanceWrapper extends MethodBackedWrapper {
     private final ConstructorCall constructor;
 
-    public NewInstanceWrapper(Types types, CacheMode cacheMode, ConstructorCall constructor) {
-        super(types, cacheMode, constructor.getMethod());
+    public NewInstanceWrapper(Types types, CacheMode cacheMode, GeneratorOptions options, ConstructorCall constructor, boolean exceptionStatus) {
+        super(types, cacheMode, options, constructor.getMethod(), exceptionStatus);
         this.constructor = constructor;
     }
 
@@ -45,16 +46,30 @@ public class NewInstanceWrapper extends MethodBackedWrapper {
     }
 
     @Override
-    protected void generateSig(StringBuilder out, boolean cStrings) {
-        generateFunctionSignature(getTypes(), out, constructor.getMethod(), constructor.getClazz().getType(), generateFunctionName(), cStrings);
+    protected TypeMirror getReturnType() {
+        return constructor.getClazz().getType();
     }
 
     @Override
-    protected void generateImpl(StringBuilder out, String moduleNamespace) {
-        generateInstantiatingMethod(out, this, constructor, moduleNamespace, (clazz, instance) -> {
-            out.append("    return ");
-            generateNewObjectCreation(out, clazz, instance, constructor.getMethod());
-            out.append('\n');
+    public boolean hasJValueVariant() {
+        return true;
+    }
+
+    @Override
+    protected void generateJValueImpl(StringBuilder out, String moduleNamespace) {
+        generateInstantiatingMethod(out, this, constructor, moduleNamespace, false, 0, (clazz, instance, localFrame) -> {
+            generateReturningCall(out, this, false, localFrame, clazz, getReturnType(), "result", (it) -> {
+                generateNewObjectACreation(it, clazz, instance);
+            });
+        });
+    }
+
+    @Override
+    protected void generateImpl(StringBuilder out, String moduleNamespace, boolean scoped) {
+        generateInstantiatingMethod(out, this, constructor, moduleNamespace, scoped, 0, (clazz, instance, localFrame) -> {
+            generateReturningCall(out, this, scoped, localFrame, clazz, getReturnType(), "result", (it) -> {
+                generateNewObjectCreation(it, clazz, instance, constructor.getMethod());
+            });
         });
     }
 }
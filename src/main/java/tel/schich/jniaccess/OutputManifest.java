@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the SHA-256 hashes of the files written to the native header output, as the {@link javax.annotation.processing.Filer}
+ * does not reliably allow reading them back. Unchanged files are not rewritten, so their modification times remain
+ * stable for native builds.
+ * <p>
+ * The manifest uses the format of sha256sum, one line of hash, two spaces and file name per file.
+ */
+public class OutputManifest {
+    public static final String FILE_NAME = "jni-access-generator.sha256";
+
+    private final Map<String, String> previous = new HashMap<>();
+    private final Map<String, String> current = new TreeMap<>();
+
+    public static String hash(CharSequence content) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported", e);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(content.toString().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public void load(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final int separator = line.indexOf("  ");
+            if (separator > 0) {
+                previous.put(line.substring(separator + 2), line.substring(0, separator));
+            }
+        }
+    }
+
+    /**
+     * @return true if the file has been written with the same content by the previous run
+     */
+    public boolean isUnchanged(String file, String hash) {
+        return hash.equals(previous.get(file));
+    }
+
+    public void record(String file, String hash) {
+        current.put(file, hash);
+    }
+
+    public boolean isModified() {
+        return !current.equals(previous);
+    }
+
+    public void store(Writer writer) throws IOException {
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            writer.write(entry.getValue());
+            writer.write("  ");
+            writer.write(entry.getKey());
+            writer.write("\n");
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Collects the wrappers instrumented with call counters and optionally latency histograms and generates the
+ * statistics table of the module.
+ * <p>
+ * Instrumented wrappers are generated as a static inline function containing the regular implementation and a
+ * function with the regular signature that records the call around it.
+ */
+public class Statistics {
+    /**
+     * Latencies are recorded in power of two buckets of nanoseconds, the last bucket collects everything above.
+     */
+    public static final int LATENCY_BUCKETS = 32;
+
+    private static final String UNINSTRUMENTED_FUNCTION_SUFFIX = "_uninstrumented";
+
+    private final boolean latency;
+    private final List<Table> tables = new ArrayList<>();
+
+    public Statistics(boolean latency) {
+        this.latency = latency;
+        this.tables.add(new Table(""));
+    }
+
+    public boolean isLatency() {
+        return latency;
+    }
+
+    /**
+     * Starts the table of a unit generated into its own translation unit. Its wrappers only refer to their own table,
+     * so their IDs do not change with the wrappers of other units.
+     */
+    public void beginUnit(String unitName) {
+        tables.add(new Table("_" + unitName));
+    }
+
+    private Table currentTable() {
+        return tables.get(tables.size() - 1);
+    }
+
+    public static String arguments(String scope, boolean instance, List<MethodParam> params) {
+        final StringBuilder out = new StringBuilder("env");
+        if (scope != null) {
+            out.append(", ").append(scope);
+        }
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ").append(param.getName());
+        }
+        return out.toString();
+    }
+
+    private static String generateTableName(String moduleNamespace) {
+        return moduleNamespace + "stats";
+    }
+
+    private static String generateCountName(String moduleNamespace) {
+        return moduleNamespace + "stats_count";
+    }
+
+    private static String generateBucketsName(String moduleNamespace) {
+        return moduleNamespace + "stats_buckets";
+    }
+
+    private static String generateEntryTypeName(String moduleNamespace) {
+        return moduleNamespace + "StatsEntry";
+    }
+
+    private void generateEntryType(StringBuilder out, String moduleNamespace) {
+        final String entryType = generateEntryTypeName(moduleNamespace);
+        out.append("typedef struct ").append(entryType).append(" {\n");
+        out.append("    _Atomic(jlong) calls;\n");
+        if (latency) {
+            out.append("    _Atomic(jlong) latency[").append(generateBucketsName(moduleNamespace)).append("];\n");
+        }
+        out.append("} ").append(entryType).append(";\n\n");
+    }
+
+    private static void recordLatencySignature(StringBuilder out, String moduleNamespace, String linkage) {
+        out.append(linkage).append("void ").append(moduleNamespace).append("stats_record_latency(")
+                .append(generateEntryTypeName(moduleNamespace)).append(" *entry, const struct timespec *start)");
+    }
+
+    /**
+     * @param functionName the full name of the function generated by signature
+     * @param arguments the arguments to forward, see {@link #arguments}
+     * @param signature generates the signature of the function with the given suffix appended to its name
+     * @param body generates the body of the function
+     */
+    public void generateInstrumented(Types types, StringBuilder out, String moduleNamespace, String functionName, TypeMirror returnType, String arguments, BiConsumer<StringBuilder, String> signature, Consumer<StringBuilder> body) {
+        final Table table = currentTable();
+        final int id = table.functionNames.size();
+        table.functionNames.add(functionName);
+
+        final String uninstrumentedName = functionName + UNINSTRUMENTED_FUNCTION_SUFFIX;
+        out.append("static inline ");
+        signature.accept(out, UNINSTRUMENTED_FUNCTION_SUFFIX);
+        body.accept(out);
+        out.append("\n");
+
+        final boolean hasResult = returnType.getKind() != TypeKind.VOID;
+        final String entry = generateTableName(moduleNamespace) + table.suffix + "[" + id + "]";
+        signature.accept(out, "");
+        out.append(" {\n");
+        out.append("    atomic_fetch_add_explicit(&").append(entry).append(".calls, 1, memory_order_relaxed);\n");
+        if (latency) {
+            out.append("    struct timespec start;\n");
+            out.append("    clock_gettime(CLOCK_MONOTONIC, &start);\n");
+        }
+        out.append("    ");
+        if (hasResult) {
+            if (latency) {
+                out.append(TypeHelper.getCType(types, returnType)).append(" result = ");
+            } else {
+                out.append("return ");
+            }
+        }
+        out.append(uninstrumentedName).append("(").append(arguments).append(");\n");
+        if (latency) {
+            out.append("    ").append(moduleNamespace).append("stats_record_latency(&").append(entry).append(", &start);\n");
+            if (hasResult) {
+                out.append("    return result;\n");
+            }
+        }
+        out.append("}\n");
+    }
+
+    /**
+     * Declares the number of latency buckets per record of a snapshot, which is 0 without latency instrumentation.
+     */
+    public void generateDeclarations(StringBuilder out, String moduleNamespace) {
+        out.append("enum {\n");
+        out.append("    ").append(generateBucketsName(moduleNamespace)).append(" = ").append(latency ? LATENCY_BUCKETS : 0).append("\n");
+        out.append("};\n");
+        out.append("jint ").append(moduleNamespace).append("StatsCount(void);\n");
+        out.append("const char* ").append(moduleNamespace).append("StatsName(jint id);\n");
+        out.append("jsize ").append(moduleNamespace).append("StatsSnapshot(jlong *buffer, jsize size);\n");
+        out.append("jlongArray ").append(moduleNamespace).append("DumpStats(JNIEnv *env);\n");
+        out.append("\n");
+    }
+
+    public void generateIncludes(StringBuilder out) {
+        if (latency) {
+            out.append("#include <time.h>\n");
+        }
+    }
+
+    /**
+     * Generates the statistics table of the current unit, which has to precede its instrumented wrappers. The table has
+     * external linkage, so that the module file can take snapshots of it.
+     */
+    public void generateUnitTable(StringBuilder out, String moduleNamespace) {
+        final Table table = currentTable();
+        generateEntryType(out, moduleNamespace);
+        out.append(generateEntryTypeName(moduleNamespace)).append(' ').append(generateTableName(moduleNamespace)).append(table.suffix)
+                .append("[").append(Math.max(table.functionNames.size(), 1)).append("];\n");
+        if (latency) {
+            recordLatencySignature(out, moduleNamespace, "");
+            out.append(";\n");
+        }
+        out.append("\n");
+    }
+
+    /**
+     * Generates the statistics table, which has to precede the instrumented wrappers unless they are in other
+     * translation units, in which case it has to follow them and only refers to the tables of their units.
+     * <p>
+     * A snapshot consists of one record per wrapper in the order of their IDs, each holding the call count followed by
+     * the counts of the {@link #LATENCY_BUCKETS} latency buckets if latencies are instrumented. IDs are assigned in the
+     * order of the units.
+     *
+     * @param shared whether the instrumented wrappers are in other translation units, see {@link #generateUnitTable}
+     */
+    public void generateTable(StringBuilder out, String moduleNamespace, boolean shared) {
+        final String tableName = generateTableName(moduleNamespace);
+        final String count = generateCountName(moduleNamespace);
+        final String buckets = generateBucketsName(moduleNamespace);
+        final List<String> functionNames = new ArrayList<>();
+        for (Table table : tables) {
+            functionNames.addAll(table.functionNames);
+        }
+        final int size = Math.max(functionNames.size(), 1);
+
+        out.append("#define ").append(count).append(' ').append(functionNames.size()).append("\n\n");
+        final String linkage = shared ? "" : "static ";
+        generateEntryType(out, moduleNamespace);
+        final List<Table> snapshotTables = new ArrayList<>();
+        if (shared) {
+            for (Table table : tables) {
+                if (!table.functionNames.isEmpty()) {
+                    out.append("extern ").append(generateEntryTypeName(moduleNamespace)).append(' ').append(tableName).append(table.suffix).append("[];\n");
+                    snapshotTables.add(table);
+                }
+            }
+            out.append("\n");
+        } else {
+            final Table table = tables.get(0);
+            out.append("static ").append(generateEntryTypeName(moduleNamespace)).append(' ').append(tableName).append(table.suffix).append("[").append(size).append("];\n\n");
+            snapshotTables.add(table);
+        }
+
+        out.append("static const char* const ").append(moduleNamespace).append("stats_names[").append(size).append("] = {\n");
+        for (String name : functionNames) {
+            out.append("    \"").append(name).append("\",\n");
+        }
+        out.append("};\n\n");
+
+        if (latency) {
+            recordLatencySignature(out, moduleNamespace, linkage);
+            out.append(" {\n");
+            out.append("    struct timespec end;\n");
+            out.append("    clock_gettime(CLOCK_MONOTONIC, &end);\n");
+            out.append("    jlong elapsed = (jlong) (end.tv_sec - start->tv_sec) * 1000000000 + (end.tv_nsec - start->tv_nsec);\n");
+            out.append("    int bucket = 0;\n");
+            out.append("    while (elapsed > 1 && bucket < ").append(buckets).append(" - 1) {\n");
+            out.append("        elapsed >>= 1;\n");
+            out.append("        bucket++;\n");
+            out.append("    }\n");
+            out.append("    atomic_fetch_add_explicit(&entry->latency[bucket], 1, memory_order_relaxed);\n");
+            out.append("}\n\n");
+        }
+
+        out.append("jint ").append(moduleNamespace).append("StatsCount(void) {\n");
+        out.append("    return ").append(count).append(";\n");
+        out.append("}\n\n");
+
+        out.append("const char* ").append(moduleNamespace).append("StatsName(jint id) {\n");
+        out.append("    if (id < 0 || id >= ").append(count).append(") {\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    return ").append(moduleNamespace).append("stats_names[id];\n");
+        out.append("}\n\n");
+
+        out.append("jsize ").append(moduleNamespace).append("StatsSnapshot(jlong *buffer, jsize size) {\n");
+        out.append("    jsize required = ").append(count).append(" * (1 + ").append(buckets).append(");\n");
+        out.append("    if (buffer == NULL || size < required) {\n");
+        out.append("        return required;\n");
+        out.append("    }\n");
+        out.append("    jsize offset = 0;\n");
+        for (Table table : snapshotTables) {
+            final String entries = tableName + table.suffix;
+            final String entryCount = shared ? String.valueOf(table.functionNames.size()) : count;
+            out.append("    for (jsize i = 0; i < ").append(entryCount).append("; i++) {\n");
+            out.append("        buffer[offset++] = atomic_load_explicit(&").append(entries).append("[i].calls, memory_order_relaxed);\n");
+            if (latency) {
+                out.append("        for (jsize j = 0; j < ").append(buckets).append("; j++) {\n");
+                out.append("            buffer[offset++] = atomic_load_explicit(&").append(entries).append("[i].latency[j], memory_order_relaxed);\n");
+                out.append("        }\n");
+            }
+            out.append("    }\n");
+        }
+        out.append("    return required;\n");
+        out.append("}\n\n");
+
+        out.append("jlongArray ").append(moduleNamespace).append("DumpStats(JNIEnv *env) {\n");
+        out.append("    jsize required = ").append(moduleNamespace).append("StatsSnapshot(NULL, 0);\n");
+        out.append("    jlongArray array = (*env)->NewLongArray(env, required);\n");
+        out.append("    if (array == NULL || required == 0) {\n");
+        out.append("        return array;\n");
+        out.append("    }\n");
+        out.append("    jlong *elements = (*env)->GetLongArrayElements(env, array, NULL);\n");
+        out.append("    if (elements == NULL) {\n");
+        out.append("        (*env)->DeleteLocalRef(env, array);\n");
+        out.append("        return NULL;\n");
+        out.append("    }\n");
+        out.append("    ").append(moduleNamespace).append("StatsSnapshot(elements, required);\n");
+        out.append("    (*env)->ReleaseLongArrayElements(env, array, elements, 0);\n");
+        out.append("    return array;\n");
+        out.append("}\n\n");
+    }
+
+    private static class Table {
+        private final String suffix;
+        private final List<String> functionNames = new ArrayList<>();
+
+        Table(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+import static tel.schich.jniaccess.GeneratorHelper.*;
+
+/**
+ * Generates variants of wrappers that report pending exceptions through their return value.
+ */
+public abstract class StatusVariants {
+    public static final String STATUS_FUNCTION_SUFFIX = "_status";
+
+    private StatusVariants() {
+    }
+
+    private static void generateSignature(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
+        out.append("jint ").append(functionName).append(STATUS_FUNCTION_SUFFIX).append("(JNIEnv *env");
+        if (instance) {
+            out.append(", jobject instance");
+        }
+        generateFunctionSignatureParameters(types, out, params, false);
+        if (returnType.getKind() != TypeKind.VOID) {
+            out.append(", ").append(TypeHelper.getCType(types, returnType)).append(" *").append(deconflictSymbol("result", params));
+        }
+        out.append(")");
+    }
+
+    public static void generateDeclaration(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
+        generateSignature(types, out, functionName, returnType, instance, params);
+        out.append(";\n");
+    }
+
+    /**
+     * The result pointer may be NULL, in which case a returned reference is deleted right away. It is left untouched
+     * if an exception is pending.
+     */
+    public static void generateImplementation(Types types, StringBuilder out, String functionName, TypeMirror returnType, boolean instance, List<MethodParam> params) {
+        final boolean hasResult = returnType.getKind() != TypeKind.VOID;
+        final String resultSymbol = deconflictSymbol("result", params);
+        final String valueSymbol = deconflictSymbol("value", params);
+        generateSignature(types, out, functionName, returnType, instance, params);
+        out.append(" {\n");
+        out.append("    ");
+        if (hasResult) {
+            out.append(TypeHelper.getCType(types, returnType)).append(' ').append(valueSymbol).append(" = ");
+        }
+        out.append(functionName).append("(env");
+        if (instance) {
+            out.append(", instance");
+        }
+        for (MethodParam param : params) {
+            out.append(", ").append(param.getName());
+        }
+        out.append(");\n");
+        out.append("    if ((*env)->ExceptionCheck(env)) {\n");
+        out.append("        return JNI_ERR;\n");
+        out.append("    }\n");
+        if (hasResult) {
+            out.append("    if (").append(resultSymbol).append(" != NULL) {\n");
+            out.append("        *").append(resultSymbol).append(" = ").append(valueSymbol).append(";\n");
+            if (!returnType.getKind().isPrimitive()) {
+                out.append("    } else if (").append(valueSymbol).append(" != NULL) {\n");
+                generateDeleteLocalRef(out, valueSymbol, "        ");
+                out.append("\n");
+            }
+            out.append("    }\n");
+        }
+        out.append("    return JNI_OK;\n");
+        out.append("}\n");
+    }
+}
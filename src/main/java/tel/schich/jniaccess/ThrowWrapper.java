@@ -32,8 +32,8 @@ import static tel.schich.jniaccess.GeneratorHelper.*;
 public class ThrowWrapper extends MethodBackedWrapper {
     private final ConstructorCall constructor;
 
-    public ThrowWrapper(Types types, CacheMode cacheMode, ConstructorCall constructor) {
-        super(types, cacheMode, constructor.getMethod());
+    public ThrowWrapper(Types types, CacheMode cacheMode, GeneratorOptions options, ConstructorCall constructor) {
+        super(types, cacheMode, options, constructor.getMethod(), false);
         this.constructor = constructor;
     }
 
@@ -48,27 +48,40 @@ public class ThrowWrapper extends MethodBackedWrapper {
     }
 
     @Override
-    protected void generateImpl(StringBuilder out, String moduleNamespace) {
-        generateInstantiatingMethod(out, this, constructor, moduleNamespace, (clazz, instance) -> {
+    protected void generateImpl(StringBuilder out, String moduleNamespace, boolean scoped) {
+        generateInstantiatingMethod(out, this, constructor, moduleNamespace, scoped, 1, (clazz, instance, localFrame) -> {
             out.append("    jthrowable t = ");
             generateNewObjectCreation(out, clazz, instance, constructor.getMethod());
-            out.append('\n');
-            out.append("    (*env)->Throw(env, t);\n");
+            out.append(";\n");
+            out.append("    if (t != NULL) {\n");
+            out.append("        (*env)->Throw(env, t);\n");
+            if (!localFrame) {
+                generateDeleteLocalRef(out, "t", "        ");
+                out.append('\n');
+            }
+            out.append("    }\n");
+            generateLocalRefRelease(out, this, scoped, localFrame, clazz, getReturnType(), null);
         });
     }
 
     @Override
-    protected void generateCStringImplementation(StringBuilder out) {
+    protected void generateCStringImplementation(StringBuilder out, String moduleNamespace) {
         AccessedMethod method = constructor.getMethod();
         List<MethodParam> params = method.getParams();
         final boolean singleStringParam = params.size() == 1 && TypeHelper.isString(getTypes(), params.get(0).getType());
         if (singleStringParam) {
-            generateSig(out, true);
-            out.append(" {\n");
-            generateClassLookup(out, "class", true, constructor.getClazz(), "    ");
-            out.append('\n');
-            out.append("    (*env)->ThrowNew(env, class, ").append(cStringName(params.get(0))).append(");\n");
-            out.append("}\n");
+            // ThrowNew doesn't go through the regular wrapper, so it is counted on its own
+            generateInstrumented(out, moduleNamespace, generateFunctionName() + C_STRING_FUNCTION_SUFFIX, TypeHelper.getVoid(getTypes()), "env, " + cStringName(params.get(0)), (it, suffix) -> generateSig(it, true, null, suffix), it -> {
+                it.append(" {\n");
+                generateClassLookup(it, "class", true, constructor.getClazz(), "    ");
+                it.append('\n');
+                it.append("    if (class != NULL) {\n");
+                it.append("        (*env)->ThrowNew(env, class, ").append(cStringName(params.get(0))).append(");\n");
+                generateDeleteLocalRef(it, "class", "        ");
+                it.append('\n');
+                it.append("    }\n");
+                it.append("}\n");
+            });
         } else {
             generateJStringFunctionOverload(getTypes(), out, generateFunctionName(), method);
         }
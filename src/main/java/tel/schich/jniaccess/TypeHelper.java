@@ -25,38 +25,111 @@ package tel.schich.jniaccess;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.ArrayType;
-import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class TypeHelper {
     private TypeHelper() {
     }
 
-    static boolean isInstanceOf(Types typeUtils, TypeMirror haystack, Class<?> needle) {
-        Element element = typeUtils.asElement(haystack);
-        if (!(element instanceof TypeElement)) {
-            return false;
-        }
-        if (((TypeElement) element).getQualifiedName().toString().equals(needle.getName())) {
-            return true;
+    /**
+     * Classifications of declared types by their qualified name, per {@link Types} instance, which lives as long as the
+     * compilation. Keys are held weakly so that compilations sharing the processor class, as in build daemons, don't
+     * retain each other's caches.
+     */
+    private static final Map<Types, Map<String, Classification>> CLASSIFICATIONS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final class Classification {
+        private final String descriptor;
+        private final Set<String> supertypes;
+        private final String cType;
+
+        private Classification(String descriptor, Set<String> supertypes) {
+            this.descriptor = descriptor;
+            this.supertypes = supertypes;
+            if (supertypes.contains(String.class.getName())) {
+                this.cType = "jstring";
+            } else if (supertypes.contains(Throwable.class.getName())) {
+                this.cType = "jthrowable";
+            } else {
+                this.cType = "jobject";
+            }
         }
+    }
+
+    /**
+     * Drops the classifications of the given compilation, types created by other processors in later rounds are then
+     * classified again.
+     */
+    static void resetCache(Types typeUtils) {
+        CLASSIFICATIONS.remove(typeUtils);
+    }
 
-        for (TypeMirror superType : typeUtils.directSupertypes(haystack)) {
-            if (superType instanceof DeclaredType) {
-                return isInstanceOf(typeUtils, superType, needle);
+    /**
+     * @return the classification of the erasure of the given type, or null if it is not a class or interface type
+     */
+    private static Classification classify(Types typeUtils, TypeMirror type) {
+        final TypeMirror erasure = typeUtils.erasure(type);
+        if (erasure.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final TypeElement element = (TypeElement) typeUtils.asElement(erasure);
+        final String name = element.getQualifiedName().toString();
+        Map<String, Classification> cache = CLASSIFICATIONS.get(typeUtils);
+        if (cache == null) {
+            cache = new ConcurrentHashMap<>();
+            final Map<String, Classification> existing = CLASSIFICATIONS.putIfAbsent(typeUtils, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        Classification classification = cache.get(name);
+        if (classification == null) {
+            // the whole hierarchy, including interfaces, each supertype is classified (and cached) on the way
+            final Set<String> supertypes = new HashSet<>();
+            supertypes.add(name);
+            for (TypeMirror superType : typeUtils.directSupertypes(erasure)) {
+                final Classification superClassification = classify(typeUtils, superType);
+                if (superClassification != null) {
+                    supertypes.addAll(superClassification.supertypes);
+                }
             }
+            classification = new Classification("L" + getClassTypeName(element) + ";", supertypes);
+            cache.put(name, classification);
         }
+        return classification;
+    }
 
-        return false;
+    static boolean isInstanceOf(Types typeUtils, TypeMirror haystack, Class<?> needle) {
+        final Classification classification = classify(typeUtils, haystack);
+        return classification != null && classification.supertypes.contains(needle.getName());
     }
 
     static boolean isString(Types typeUtils, TypeMirror type) {
         return isInstanceOf(typeUtils, type, String.class);
     }
 
+    static boolean isByteBuffer(Types typeUtils, TypeMirror type) {
+        return isInstanceOf(typeUtils, type, ByteBuffer.class);
+    }
+
+    /**
+     * The binary name of the class in internal form, as expected by FindClass and in descriptors: nested classes are
+     * separated by '$'.
+     */
     static String getClassTypeName(TypeElement elem) {
+        final Element enclosing = elem.getEnclosingElement();
+        if (enclosing instanceof TypeElement) {
+            return getClassTypeName((TypeElement) enclosing) + "$" + elem.getSimpleName();
+        }
         return elem.getQualifiedName().toString().replace('.', '/');
     }
 
@@ -81,7 +154,8 @@ public abstract class TypeHelper {
             case VOID:
                 return "V";
             case DECLARED:
-                return "L" + getClassTypeName((TypeElement) typeUtils.asElement(type)) + ";";
+            case TYPEVAR:
+                return classify(typeUtils, type).descriptor;
             case ARRAY:
                 return "[" + getJNIType(typeUtils, ((ArrayType) type).getComponentType());
             default:
@@ -114,6 +188,29 @@ public abstract class TypeHelper {
         }
     }
 
+    static char getJValueMember(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return 'z';
+            case CHAR:
+                return 'c';
+            case BYTE:
+                return 'b';
+            case SHORT:
+                return 's';
+            case INT:
+                return 'i';
+            case LONG:
+                return 'j';
+            case FLOAT:
+                return 'f';
+            case DOUBLE:
+                return 'd';
+            default:
+                return 'l';
+        }
+    }
+
     static String getCType(Types typeUtils, TypeMirror type) {
         switch (type.getKind()) {
             case BOOLEAN:
@@ -156,13 +253,11 @@ public abstract class TypeHelper {
                         return "jobjectArray";
                 }
             default:
-                if (isInstanceOf(typeUtils, type, String.class)) {
-                    return "jstring";
-                } else if (isInstanceOf(typeUtils, type, Throwable.class)) {
-                    return "jthrowable";
-                } else {
+                final Classification classification = classify(typeUtils, type);
+                if (classification == null) {
                     return "jobject";
                 }
+                return classification.cType;
         }
     }
 
@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ * Copyright © 2020 Phillip Schichtel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package tel.schich.jniaccess;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static tel.schich.jniaccess.GeneratorHelper.JVALUE_PARAMETER;
+
+/**
+ * Generates function pointers for static methods, which a generated Java registrar fills with java.lang.foreign
+ * upcall stubs. Until then the wrappers call the methods through JNI.
+ */
+public abstract class Upcalls {
+    public static final String CLASS_SUFFIX = "Upcalls";
+
+    private Upcalls() {
+    }
+
+    /**
+     * The registrar looks the method up from outside the class, and upcall stubs only pass primitives.
+     */
+    public static boolean isSupported(ExecutableElement method) {
+        if (!method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        final TypeMirror returnType = method.getReturnType();
+        if (!returnType.getKind().isPrimitive() && returnType.getKind() != TypeKind.VOID) {
+            return false;
+        }
+        for (VariableElement parameter : method.getParameters()) {
+            if (!parameter.asType().getKind().isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isRequired(List<WrappedElement> elements) {
+        for (WrappedElement element : elements) {
+            if (element instanceof MethodCallWrapper && ((MethodCallWrapper) element).isUpcall()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String registrationFunctionName(String moduleNamespace, String classSymbolName) {
+        return moduleNamespace + "RegisterUpcalls_" + classSymbolName;
+    }
+
+    private static String functionPointerName(String moduleNamespace, MethodCallWrapper element) {
+        return moduleNamespace + "upcall_" + element.generateFunctionName();
+    }
+
+    private static void generateFunctionPointerType(Types types, StringBuilder out, String name, MethodCallWrapper element) {
+        out.append(TypeHelper.getCType(types, element.getReturnType())).append(" (*").append(name).append(")(");
+        final List<MethodParam> params = element.getMethod().getParams();
+        if (params.isEmpty()) {
+            out.append("void");
+        }
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(TypeHelper.getCType(types, params.get(i).getType()));
+        }
+        out.append(")");
+    }
+
+    /**
+     * The pointer is atomic, as it is registered by one thread and read by any thread calling the wrapper.
+     */
+    public static void generateFunctionPointer(Types types, StringBuilder out, String moduleNamespace, MethodCallWrapper element) {
+        out.append("static ");
+        generateFunctionPointerType(types, out, "_Atomic " + functionPointerName(moduleNamespace, element), element);
+        out.append(" = NULL;\n\n");
+    }
+
+    /**
+     * Generates the call through the function pointer, which returns from the wrapper if the stub is registered.
+     */
+    public static void generateCall(Types types, StringBuilder out, String moduleNamespace, MethodCallWrapper element, boolean jvalues) {
+        final String pointer = functionPointerName(moduleNamespace, element);
+        final String function = pointer + "_ref";
+        final List<MethodParam> params = element.getMethod().getParams();
+        out.append("    ");
+        generateFunctionPointerType(types, out, function, element);
+        out.append(" = atomic_load_explicit(&").append(pointer).append(", memory_order_acquire);\n");
+        out.append("    if (").append(function).append(" != NULL) {\n");
+        out.append("        ");
+        final boolean isVoid = element.getReturnType().getKind() == TypeKind.VOID;
+        if (!isVoid) {
+            out.append("return ");
+        }
+        out.append(function).append('(');
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (jvalues) {
+                out.append(JVALUE_PARAMETER).append('[').append(i).append("].").append(TypeHelper.getJValueMember(params.get(i).getType()));
+            } else {
+                out.append(params.get(i).getName());
+            }
+        }
+        out.append(");\n");
+        if (isVoid) {
+            out.append("        return;\n");
+        }
+        out.append("    }\n");
+    }
+
+    private static Map<AccessedClass, List<MethodCallWrapper>> upcallsByClass(List<WrappedElement> elements) {
+        final Map<String, AccessedClass> classes = new LinkedHashMap<>();
+        final Map<AccessedClass, List<MethodCallWrapper>> upcalls = new LinkedHashMap<>();
+        for (WrappedElement element : elements) {
+            if (element instanceof MethodCallWrapper && ((MethodCallWrapper) element).isUpcall()) {
+                final AccessedClass clazz = classes.computeIfAbsent(element.getHostClass().getSymbolName(), k -> element.getHostClass());
+                upcalls.computeIfAbsent(clazz, k -> new ArrayList<>()).add((MethodCallWrapper) element);
+            }
+        }
+        return upcalls;
+    }
+
+    private static void generateRegistrationSignature(StringBuilder out, String moduleNamespace, AccessedClass clazz) {
+        out.append("jint ").append(registrationFunctionName(moduleNamespace, clazz.getSymbolName())).append("(void *const *functions, jint count)");
+    }
+
+    public static void generateDeclarations(StringBuilder out, String moduleNamespace, List<WrappedElement> elements) {
+        final Map<AccessedClass, List<MethodCallWrapper>> upcalls = upcallsByClass(elements);
+        for (AccessedClass clazz : upcalls.keySet()) {
+            generateRegistrationSignature(out, moduleNamespace, clazz);
+            out.append(";\n");
+        }
+        if (!upcalls.isEmpty()) {
+            out.append("\n");
+        }
+    }
+
+    /**
+     * Generates a function per class taking the upcall stubs in the order of the methods.
+     */
+    public static void generateImplementations(Types types, StringBuilder out, String moduleNamespace, List<WrappedElement> elements) {
+        for (Map.Entry<AccessedClass, List<MethodCallWrapper>> e : upcallsByClass(elements).entrySet()) {
+            final List<MethodCallWrapper> methods = e.getValue();
+            generateRegistrationSignature(out, moduleNamespace, e.getKey());
+            out.append(" {\n");
+            out.append("    if (count != ").append(methods.size()).append(") {\n");
+            out.append("        return JNI_ERR;\n");
+            out.append("    }\n");
+            for (int i = 0; i < methods.size(); i++) {
+                final MethodCallWrapper method = methods.get(i);
+                out.append("    atomic_store_explicit(&").append(functionPointerName(moduleNamespace, method)).append(", (");
+                generateFunctionPointerType(types, out, "", method);
+                out.append(") functions[").append(i).append("], memory_order_release);\n");
+            }
+            out.append("    return JNI_OK;\n");
+            out.append("}\n\n");
+        }
+    }
+
+    /**
+     * Generates a class next to the host class, which creates an upcall stub per method and passes them to the
+     * registration function of the class.
+     */
+    public static CharSequence generateRegistrar(Types types, String packageName, String className, String hostClassName, String registrationFunction, List<ExecutableElement> methods) {
+        final StringBuilder out = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import java.lang.foreign.Arena;\n");
+        out.append("import java.lang.foreign.FunctionDescriptor;\n");
+        out.append("import java.lang.foreign.Linker;\n");
+        out.append("import java.lang.foreign.MemorySegment;\n");
+        out.append("import java.lang.foreign.SymbolLookup;\n");
+        out.append("import java.lang.foreign.ValueLayout;\n");
+        out.append("import java.lang.invoke.MethodHandle;\n");
+        out.append("import java.lang.invoke.MethodHandles;\n");
+        out.append("import java.lang.invoke.MethodType;\n");
+        out.append("\n");
+        out.append("/**\n");
+        out.append(" * Registers upcall stubs for the static methods of {@link ").append(hostClassName).append("} called from native code.\n");
+        out.append(" */\n");
+        out.append("public final class ").append(className).append(" {\n");
+        out.append("    private static boolean registered;\n");
+        out.append("\n");
+        out.append("    private ").append(className).append("() {\n");
+        out.append("    }\n");
+        out.append("\n");
+        out.append("    /**\n");
+        out.append("     * Must be called after the native library has been loaded. The stubs are never freed.\n");
+        out.append("     */\n");
+        out.append("    public static synchronized void register() {\n");
+        out.append("        if (registered) {\n");
+        out.append("            return;\n");
+        out.append("        }\n");
+        out.append("        Linker linker = Linker.nativeLinker();\n");
+        out.append("        MethodHandles.Lookup lookup = MethodHandles.lookup();\n");
+        out.append("        Arena arena = Arena.global();\n");
+        out.append("        MemorySegment functions = arena.allocate(ValueLayout.ADDRESS, ").append(methods.size()).append(");\n");
+        out.append("        try {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            final ExecutableElement method = methods.get(i);
+            final List<MethodParam> params = JNIAccessProcessor.getParams(method);
+            out.append("            functions.setAtIndex(ValueLayout.ADDRESS, ").append(i).append(", linker.upcallStub(lookup.findStatic(")
+                    .append(hostClassName).append(".class, \"").append(method.getSimpleName()).append("\", MethodType.methodType(");
+            out.append(method.getReturnType()).append(".class");
+            for (MethodParam param : params) {
+                out.append(", ").append(param.getType()).append(".class");
+            }
+            out.append(")), ");
+            ForeignDowncalls.generateFunctionDescriptor(types, out, method.getReturnType(), params);
+            out.append(", arena));\n");
+        }
+        out.append("        } catch (ReflectiveOperationException e) {\n");
+        out.append("            throw new IllegalStateException(e);\n");
+        out.append("        }\n");
+        out.append("        MemorySegment symbol = SymbolLookup.loaderLookup().find(\"").append(registrationFunction)
+                .append("\").orElseThrow(() -> new UnsatisfiedLinkError(\"unresolved symbol: ").append(registrationFunction).append("\"));\n");
+        out.append("        MethodHandle registration = linker.downcallHandle(symbol, FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));\n");
+        out.append("        int result;\n");
+        out.append("        try {\n");
+        out.append("            result = (int) registration.invokeExact(functions, ").append(methods.size()).append(");\n");
+        out.append("        } catch (Throwable t) {\n");
+        out.append("            throw new IllegalStateException(t);\n");
+        out.append("        }\n");
+        out.append("        if (result != 0) {\n");
+        out.append("            throw new IllegalStateException(\"Failed to register the upcalls: \" + result);\n");
+        out.append("        }\n");
+        out.append("        registered = true;\n");
+        out.append("    }\n");
+        out.append("}\n");
+        return out;
+    }
+}
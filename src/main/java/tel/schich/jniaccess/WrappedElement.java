@@ -22,15 +22,20 @@
  */
 package tel.schich.jniaccess;
 
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public abstract class WrappedElement {
     private final Types types;
     private final CacheMode cacheMode;
+    private final GeneratorOptions options;
 
-    public WrappedElement(Types types, CacheMode cacheMode) {
+    public WrappedElement(Types types, CacheMode cacheMode, GeneratorOptions options) {
         this.types = types;
         this.cacheMode = cacheMode;
+        this.options = options;
     }
 
     public Types getTypes() {
@@ -41,7 +46,34 @@ public abstract class WrappedElement {
         return cacheMode;
     }
 
+    public GeneratorOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Whether this element produces a String that can be read into a C buffer.
+     */
+    public boolean hasStringResult() {
+        return false;
+    }
+
+    /**
+     * Generates the implementation of a wrapper, instrumented if statistics are enabled.
+     *
+     * @param signature generates the signature of the wrapper with the given suffix appended to its name
+     * @param body generates the body of the wrapper
+     */
+    protected void generateInstrumented(StringBuilder out, String moduleNamespace, String functionName, TypeMirror returnType, String arguments, BiConsumer<StringBuilder, String> signature, Consumer<StringBuilder> body) {
+        final Statistics statistics = options.getStatistics();
+        if (statistics == null) {
+            signature.accept(out, "");
+            body.accept(out);
+        } else {
+            statistics.generateInstrumented(types, out, moduleNamespace, functionName, returnType, arguments, signature, body);
+        }
+    }
+
     public abstract AccessedClass getHostClass();
-    public abstract void generateDeclarations(StringBuilder out);
+    public abstract void generateDeclarations(StringBuilder out, String moduleNamespace);
     public abstract void generateImplementations(StringBuilder out, String moduleNamespace);
 }